@@ -0,0 +1,191 @@
+package ftp_server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/*
+ * Compares the heap cost of receiving an upload by streaming it through a
+ * pooled buffer (FileHandler.receiveToStorage) with reading the whole
+ * declared size into one array first, as uploads used to. The body comes
+ * from memory and the storage discards it, so only the receive path is
+ * measured.
+ *
+ *   java -Xmx1g -cp ... ftp_server.AllocationBenchmark [file MB] [rounds]
+ */
+public class AllocationBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private interface Receiver {
+
+        void receive(DataInputStream in, long size, Storage storage) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long size = megabytes * 1024L * 1024L;
+
+        System.out.printf("Upload of %d MB, %d rounds, max heap %d MB%n%n", megabytes, rounds,
+                Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        System.out.printf("%-10s %14s %10s %10s %12s%n", "mode", "MB allocated", "GCs", "GC ms", "MB/s");
+        run("streamed", size, rounds, (in, length, storage) -> {
+            if (!FileHandler.receiveToStorage(in, length, storage, "bench/file", message -> {
+            })) {
+                throw new IOException("Storage refused the upload");
+            }
+        });
+        run("whole", size, rounds, AllocationBenchmark::receiveWhole);
+    }
+
+    private static void run(String mode, long size, int rounds, Receiver receiver) throws IOException {
+        Storage storage = new DiscardingStorage();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            receiver.receive(new DataInputStream(new ZeroStream(size)), size, storage);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            receiver.receive(new DataInputStream(new ZeroStream(size)), size, storage);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-10s %14.1f %10d %10d %12.1f%n", mode, allocated / (1024.0 * 1024.0),
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore,
+                size * rounds / (1024.0 * 1024.0) / Math.max(seconds, 1e-9));
+    }
+
+    // The receive path before uploads were streamed: one array of the client's declared size.
+    private static void receiveWhole(DataInputStream in, long size, Storage storage) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Unsupported file size: " + size);
+        }
+        byte[] data = new byte[(int) size];
+        in.readFully(data);
+        try (Storage.WriteChannel channel = storage.openWrite("bench/file")) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // A body of the given length that costs nothing to produce; the bytes are whatever is in the caller's buffer.
+    private static class ZeroStream extends InputStream {
+
+        private long remaining;
+
+        ZeroStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(length, remaining);
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static class DiscardingStorage implements Storage {
+
+        @Override
+        public List<StorageEntry> list(String path) {
+            return List.of();
+        }
+
+        @Override
+        public StorageEntry stat(String path) {
+            return null;
+        }
+
+        @Override
+        public ReadableByteChannel openRead(String path) throws IOException {
+            throw new IOException("Write-only storage");
+        }
+
+        @Override
+        public WriteChannel openWrite(String path) {
+            return new WriteChannel() {
+                private boolean open = true;
+
+                @Override
+                public int write(ByteBuffer source) {
+                    int length = source.remaining();
+                    source.position(source.limit());
+                    return length;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                }
+
+                @Override
+                public void abort() {
+                    open = false;
+                }
+            };
+        }
+
+        @Override
+        public boolean rename(String from, String to) {
+            return false;
+        }
+
+        @Override
+        public boolean delete(String path) {
+            return false;
+        }
+
+        @Override
+        public File localFile(String path) {
+            return null;
+        }
+    }
+}
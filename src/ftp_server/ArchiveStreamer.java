@@ -0,0 +1,352 @@
+package ftp_server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Writes a directory as a ZIP or TAR stream while walking it, so nothing is
+ * staged on disk and memory use does not depend on the size of the tree.
+ */
+public class ArchiveStreamer {
+
+    public static final String FORMAT_ZIP = "zip";
+    public static final String FORMAT_TAR = "tar";
+    public static final String FORMAT_TAR_GZ = "tar.gz";
+
+    private static final int TAR_BLOCK = 512;
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    private final Path root;
+    private final String format;
+    private byte[] buffer;
+    private byte[] staged;
+    private long files;
+    private long directories;
+    private long bytes;
+    private long failed;
+    private final List<String> failures = new ArrayList<>();
+
+    public ArchiveStreamer(Path root, String format) {
+        this.root = root.toAbsolutePath().normalize();
+        this.format = format;
+    }
+
+    public static boolean isSupportedFormat(String format) {
+        return FORMAT_ZIP.equals(format) || FORMAT_TAR.equals(format) || FORMAT_TAR_GZ.equals(format);
+    }
+
+    public TreeResult writeTo(OutputStream out) throws IOException {
+        buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        staged = BufferPool.acquire(BufferPool.MEDIUM);
+        try {
+            writeArchive(out);
+        } finally {
+            BufferPool.release(buffer);
+            BufferPool.release(staged);
+            buffer = null;
+            staged = null;
+        }
+        return new TreeResult(TreeResult.OP_SIZE, files, directories, bytes, failed, failures, false, true);
+    }
+
+    private void writeArchive(OutputStream out) throws IOException {
+        switch (format) {
+            case FORMAT_ZIP:
+                try (ZipOutputStream zip = new ZipOutputStream(out)) {
+                    walk(new ZipSink(zip));
+                }
+                break;
+            case FORMAT_TAR:
+                try (OutputStream tar = out) {
+                    walk(new TarSink(tar));
+                }
+                break;
+            case FORMAT_TAR_GZ:
+                try (OutputStream tar = new ParallelGzipOutputStream(out)) {
+                    walk(new TarSink(tar));
+                }
+                break;
+            default:
+                throw new IOException("Unsupported archive format: " + format);
+        }
+    }
+
+    private void walk(Sink sink) throws IOException {
+        Path base = root.getParent() != null ? root.getParent() : root;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                sink.directory(entryName(base, dir) + "/", attributes.lastModifiedTime());
+                directories++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                // Uploads still being written, or orphaned by a crash, are not part of the folder.
+                if (!attributes.isRegularFile() || Durability.isTemp(file.getFileName().toString())) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (attributes.size() <= staged.length) {
+                    writeSmallFile(sink, entryName(base, file), file, attributes);
+                } else {
+                    writeLargeFile(sink, entryName(base, file), file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                fail(file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        sink.finish();
+    }
+
+    /*
+     * Small files are read whole before their entry is started, so a read
+     * failure skips the file and leaves the archive intact.
+     */
+    private void writeSmallFile(Sink sink, String name, Path file, BasicFileAttributes attributes) throws IOException {
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(staged, 0, staged.length);
+        } catch (IOException e) {
+            fail(file, e);
+            return;
+        }
+        sink.file(name, length, attributes.lastModifiedTime(), new ByteArrayInputStream(staged, 0, length));
+        files++;
+        bytes += length;
+    }
+
+    // Once a large entry is started, a read failure would leave it truncated, so the archive is aborted instead.
+    private void writeLargeFile(Sink sink, String name, Path file, BasicFileAttributes attributes) throws IOException {
+        InputStream in;
+        try {
+            in = Files.newInputStream(file);
+        } catch (IOException e) {
+            fail(file, e);
+            return;
+        }
+        try (in) {
+            sink.file(name, attributes.size(), attributes.lastModifiedTime(), in);
+        } catch (AbortException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new AbortException(file + ": " + e.getMessage(), e);
+        }
+        files++;
+        bytes += attributes.size();
+    }
+
+    private void fail(Path path, IOException e) {
+        if (++failed <= MAX_REPORTED_FAILURES) {
+            failures.add(path + ": " + e);
+        }
+    }
+
+    private static String entryName(Path base, Path path) {
+        return base.relativize(path).toString().replace('\\', '/');
+    }
+
+    private interface Sink {
+
+        void directory(String name, FileTime modified) throws IOException;
+
+        void file(String name, long size, FileTime modified, InputStream in) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    /*
+     * The archive cannot be completed: writing to the client failed, or a file
+     * failed part way through its entry. The stream is ended but the archive
+     * in it must be discarded.
+     */
+    public static class AbortException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        AbortException(IOException cause) {
+            super(cause);
+        }
+
+        AbortException(String message, IOException cause) {
+            super(message, cause);
+        }
+    }
+
+    private class ZipSink implements Sink {
+
+        private final ZipOutputStream zip;
+
+        ZipSink(ZipOutputStream zip) {
+            this.zip = zip;
+        }
+
+        @Override
+        public void directory(String name, FileTime modified) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setLastModifiedTime(modified);
+            try {
+                zip.putNextEntry(entry);
+                zip.closeEntry();
+            } catch (IOException e) {
+                throw new AbortException(e);
+            }
+        }
+
+        @Override
+        public void file(String name, long size, FileTime modified, InputStream in) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setLastModifiedTime(modified);
+            try {
+                zip.putNextEntry(entry);
+            } catch (IOException e) {
+                throw new AbortException(e);
+            }
+            try {
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    try {
+                        zip.write(buffer, 0, bytesRead);
+                    } catch (IOException e) {
+                        throw new AbortException(e);
+                    }
+                }
+            } finally {
+                try {
+                    zip.closeEntry();
+                } catch (IOException e) {
+                    throw new AbortException(e);
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try {
+                zip.finish();
+            } catch (IOException e) {
+                throw new AbortException(e);
+            }
+        }
+    }
+
+    private class TarSink implements Sink {
+
+        private final OutputStream out;
+
+        TarSink(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void directory(String name, FileTime modified) throws IOException {
+            writeHeader(name, 0, modified, '5');
+        }
+
+        @Override
+        public void file(String name, long size, FileTime modified, InputStream in) throws IOException {
+            writeHeader(name, size, modified, '0');
+            // The header already promised size bytes: a file that grows is cut, one that shrinks aborts.
+            long remaining = size;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new IOException("File shrank while archiving");
+                }
+                write(buffer, bytesRead);
+                remaining -= bytesRead;
+            }
+            pad(size);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            write(new byte[TAR_BLOCK * 2], TAR_BLOCK * 2);
+        }
+
+        private void writeHeader(String name, long size, FileTime modified, char type) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > 100) {
+                // GNU long name extension: the real name travels as the body of a preceding 'L' entry.
+                write(header("././@LongLink", nameBytes.length + 1, 0, 'L'), TAR_BLOCK);
+                write(nameBytes, nameBytes.length);
+                write(new byte[1], 1);
+                pad(nameBytes.length + 1);
+            }
+            write(header(name, size, modified.toMillis() / 1000, type), TAR_BLOCK);
+        }
+
+        private byte[] header(String name, long size, long modifiedSeconds, char type) {
+            byte[] header = new byte[TAR_BLOCK];
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+            octal(header, 100, 8, type == '5' ? 0755 : 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, modifiedSeconds);
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            header[156] = (byte) type;
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            octal(header, 148, 7, checksum);
+            return header;
+        }
+
+        private void octal(byte[] header, int offset, int length, long value) {
+            if (value >= 1L << (3 * (length - 1))) {
+                // Too large for octal (files over 8 GB): GNU base-256 encoding.
+                header[offset] = (byte) 0x80;
+                for (int i = length - 1; i > 0; i--) {
+                    header[offset + i] = (byte) value;
+                    value >>>= 8;
+                }
+                return;
+            }
+            String digits = Long.toOctalString(value);
+            int pad = length - 1 - digits.length();
+            for (int i = 0; i < length - 1; i++) {
+                header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+            }
+            header[offset + length - 1] = 0;
+        }
+
+        private void pad(long size) throws IOException {
+            int remainder = (int) (size % TAR_BLOCK);
+            if (remainder != 0) {
+                write(new byte[TAR_BLOCK - remainder], TAR_BLOCK - remainder);
+            }
+        }
+
+        private void write(byte[] data, int length) throws IOException {
+            try {
+                out.write(data, 0, length);
+            } catch (IOException e) {
+                throw new AbortException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class AuditEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String OP_UPLOAD = "upload";
+    public static final String OP_DOWNLOAD = "download";
+    public static final String OP_RENAME = "rename";
+    public static final String OP_DELETE = "delete";
+
+    public static final String RESULT_SUCCESS = "success";
+    public static final String RESULT_FAILED = "failed";
+    public static final String RESULT_PARTIAL = "partial";
+    public static final String RESULT_NOT_FOUND = "not_found";
+
+    private long timestamp;
+    private String username;
+    private String operation;
+    private String path;
+    private String target;
+    private long bytes;
+    private long durationMs;
+    private String result;
+    private String clientAddress;
+
+    public AuditEvent(String username, String operation, String path, String target, long bytes, long durationMs,
+            String result, String clientAddress) {
+        this.timestamp = System.currentTimeMillis();
+        this.username = username;
+        this.operation = operation;
+        this.path = path;
+        this.target = target;
+        this.bytes = bytes;
+        this.durationMs = durationMs;
+        this.result = result;
+        this.clientAddress = clientAddress;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+}
@@ -0,0 +1,248 @@
+package ftp_server;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Structured record of file operations. Handlers only enqueue events; a
+ * single writer thread drains the queue in batches and inserts each batch
+ * into the audit_log table with one JDBC batch. While the database is
+ * unreachable, batches are appended as JSON lines to a local file instead.
+ * If the queue is full the event is dropped and counted, never waited for.
+ */
+public class AuditLog {
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("ftp.audit.queueSize", 10_000);
+    private static final int MAX_BATCH = 500;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final long RECONNECT_DELAY_MS = 30_000;
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS audit_log ("
+            + "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+            + "event_time DATETIME(3) NOT NULL, "
+            + "username VARCHAR(255), "
+            + "operation VARCHAR(32) NOT NULL, "
+            + "path VARCHAR(1024), "
+            + "target VARCHAR(1024), "
+            + "bytes BIGINT NOT NULL, "
+            + "duration_ms BIGINT NOT NULL, "
+            + "result VARCHAR(32) NOT NULL, "
+            + "client_address VARCHAR(64), "
+            + "INDEX idx_audit_user_time (username, event_time))";
+    private static final String INSERT = "INSERT INTO audit_log "
+            + "(event_time, username, operation, path, target, bytes, duration_ms, result, client_address) "
+            + "VALUES (?,?,?,?,?,?,?,?,?)";
+
+    private final FTP_Server serverGUI;
+    private final Path usersRoot;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final File fallbackFile;
+    private final BlockingQueue<AuditEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private Connection connection;
+    private long nextConnectAttempt;
+    private volatile boolean running = true;
+
+    public AuditLog(FTP_Server serverGUI, File usersRoot, String url, String user, String password, File fallbackFile) {
+        this.serverGUI = serverGUI;
+        this.usersRoot = usersRoot.getAbsoluteFile().toPath().normalize();
+        // Lets the MySQL driver send a JDBC batch as one multi-row INSERT.
+        this.url = url + (url.contains("?") ? "&" : "?") + "rewriteBatchedStatements=true";
+        this.user = user;
+        this.password = password;
+        this.fallbackFile = fallbackFile;
+        this.writer = new Thread(this::run, "audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // The user is taken from the first path segment under the users root.
+    public void record(String operation, File file, File target, long bytes, long startNanos, String result,
+            String clientAddress) {
+        long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        record(new AuditEvent(ownerOf(file), operation, displayPath(file), target == null ? null : displayPath(target),
+                bytes, durationMs, result, clientAddress));
+    }
+
+    public void record(AuditEvent event) {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Stops the writer after it has flushed everything already queued.
+    public void shutdown() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String ownerOf(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(usersRoot) || path.equals(usersRoot)) {
+            return null;
+        }
+        return usersRoot.relativize(path).getName(0).toString();
+    }
+
+    private String displayPath(File file) {
+        return file.getPath().replace("\\", "/");
+    }
+
+    private void run() {
+        List<AuditEvent> batch = new ArrayList<>(MAX_BATCH);
+        while (running) {
+            try {
+                AuditEvent first = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Give a burst a moment to accumulate so it goes out as one batch.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                while (batch.size() < MAX_BATCH) {
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= MAX_BATCH || remaining <= 0) {
+                        break;
+                    }
+                    AuditEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutting down; flush what we have below.
+            }
+            flush(batch);
+        }
+        queue.drainTo(batch);
+        flush(batch);
+        closeConnection();
+    }
+
+    private void flush(List<AuditEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!insert(batch)) {
+            appendToFallback(batch);
+        }
+        batch.clear();
+    }
+
+    private boolean insert(List<AuditEvent> batch) {
+        Connection conn = connection();
+        if (conn == null) {
+            return false;
+        }
+        try (PreparedStatement insertStmt = conn.prepareStatement(INSERT)) {
+            for (AuditEvent event : batch) {
+                insertStmt.setTimestamp(1, new Timestamp(event.getTimestamp()));
+                insertStmt.setString(2, event.getUsername());
+                insertStmt.setString(3, event.getOperation());
+                insertStmt.setString(4, event.getPath());
+                insertStmt.setString(5, event.getTarget());
+                insertStmt.setLong(6, event.getBytes());
+                insertStmt.setLong(7, event.getDurationMs());
+                insertStmt.setString(8, event.getResult());
+                insertStmt.setString(9, event.getClientAddress());
+                insertStmt.addBatch();
+            }
+            insertStmt.executeBatch();
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            serverGUI.appendToConsole("Audit log insert failed, writing to " + fallbackFile + ": " + e.getMessage());
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {
+                // The connection is dropped below anyway.
+            }
+            closeConnection();
+            nextConnectAttempt = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+            return false;
+        }
+    }
+
+    // Reuses one connection; after a failure, waits RECONNECT_DELAY_MS before trying the database again.
+    private Connection connection() {
+        if (connection != null) {
+            return connection;
+        }
+        if (System.currentTimeMillis() < nextConnectAttempt) {
+            return null;
+        }
+        try {
+            Connection conn = DriverManager.getConnection(url, user, password);
+            try (Statement statement = conn.createStatement()) {
+                statement.executeUpdate(CREATE_TABLE);
+            }
+            conn.setAutoCommit(false);
+            connection = conn;
+            return conn;
+        } catch (SQLException e) {
+            serverGUI.appendToConsole("Audit log database unavailable: " + e.getMessage());
+            nextConnectAttempt = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+            return null;
+        }
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Already broken.
+            }
+            connection = null;
+        }
+    }
+
+    private void appendToFallback(List<AuditEvent> batch) {
+        File parent = fallbackFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        Gson gson = new Gson();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(fallbackFile, true), StandardCharsets.UTF_8)) {
+            StringBuilder lines = new StringBuilder();
+            for (AuditEvent event : batch) {
+                lines.append(gson.toJson(event)).append('\n');
+            }
+            out.write(lines.toString());
+        } catch (IOException e) {
+            serverGUI.appendToConsole("Error writing audit fallback file: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package ftp_server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Receives a manifest followed by the concatenated bodies of many files.
+ * Bodies land in temp files that are committed together (see Durability),
+ * so a batch of small files costs one round of syncs per group, not per file.
+ */
+public class BatchUploadReceiver {
+
+    private static final int GROUP_MAX_FILES = 256;
+    private static final long GROUP_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    public static class Entry {
+
+        private String name;
+        private long size;
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private static class PendingFile {
+
+        final Path temp;
+        final Path target;
+        final FileChannel channel;
+        final boolean replacing;
+
+        PendingFile(Path temp, Path target, FileChannel channel, boolean replacing) {
+            this.temp = temp;
+            this.target = target;
+            this.channel = channel;
+            this.replacing = replacing;
+        }
+    }
+
+    private final Path root;
+    private final List<Entry> manifest;
+    private byte[] buffer;
+    private final List<PendingFile> group = new ArrayList<>();
+    private long groupBytes;
+    private long files;
+    private long bytes;
+    private long failed;
+    private final List<String> failures = new ArrayList<>();
+    private final List<File> created = new ArrayList<>();
+    private final List<File> modified = new ArrayList<>();
+
+    public BatchUploadReceiver(File userDirectory, List<Entry> manifest) {
+        this.root = userDirectory.toPath().toAbsolutePath().normalize();
+        this.manifest = manifest;
+    }
+
+    public boolean isValidManifest() {
+        if (manifest == null || manifest.isEmpty()) {
+            return false;
+        }
+        Set<Path> targets = new HashSet<>();
+        for (Entry entry : manifest) {
+            if (entry == null || entry.name == null || entry.name.isEmpty() || entry.size < 0) {
+                return false;
+            }
+            Path target = root.resolve(entry.name).normalize();
+            if (!target.startsWith(root) || target.equals(root) || !targets.add(target)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public TreeResult receive(DataInputStream dataInputStream) throws IOException {
+        buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        try {
+            for (Entry entry : manifest) {
+                Path target = root.resolve(entry.name).normalize();
+                PendingFile pending = null;
+                try {
+                    Files.createDirectories(target.getParent());
+                    pending = open(target);
+                } catch (IOException e) {
+                    fail(entry.name, e);
+                }
+                if (copyBody(dataInputStream, entry, pending)) {
+                    group.add(pending);
+                    groupBytes += entry.size;
+                    if (group.size() >= GROUP_MAX_FILES || groupBytes >= GROUP_MAX_BYTES) {
+                        commitGroup();
+                    }
+                }
+            }
+            commitGroup();
+        } finally {
+            abortGroup();
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        return new TreeResult(TreeResult.OP_COPY, files, 0, bytes, failed, failures, false, true);
+    }
+
+    // Files committed as new so far, including by a receive that later threw.
+    public List<File> getCreated() {
+        return created;
+    }
+
+    // Files committed over an existing file so far.
+    public List<File> getModified() {
+        return modified;
+    }
+
+    private static PendingFile open(Path target) throws IOException {
+        boolean replacing = Files.exists(target);
+        Path temp = Durability.createTemp(target);
+        try {
+            return new PendingFile(temp, target, FileChannel.open(temp, StandardOpenOption.WRITE), replacing);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Always consumes the entry's bytes from the socket, even once writing it has failed, to stay in sync with the client.
+    private boolean copyBody(DataInputStream dataInputStream, Entry entry, PendingFile pending) throws IOException {
+        long remaining = entry.size;
+        FileChannel channel = pending == null ? null : pending.channel;
+        while (remaining > 0) {
+            int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                throw new IOException("Connection closed in the middle of " + entry.name);
+            }
+            remaining -= bytesRead;
+            if (channel != null) {
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                } catch (IOException e) {
+                    fail(entry.name, e);
+                    discard(pending);
+                    channel = null;
+                }
+            }
+        }
+        return channel != null;
+    }
+
+    private void commitGroup() {
+        List<Durability.Commit> commits = new ArrayList<>();
+        List<Boolean> replacing = new ArrayList<>();
+        for (PendingFile pending : group) {
+            try {
+                pending.channel.close();
+                commits.add(new Durability.Commit(pending.temp, pending.target));
+                replacing.add(pending.replacing);
+            } catch (IOException e) {
+                fail(root.relativize(pending.target).toString(), e);
+                discard(pending);
+            }
+        }
+        group.clear();
+        groupBytes = 0;
+
+        Durability.commitAll(commits);
+        for (int i = 0; i < commits.size(); i++) {
+            Durability.Commit commit = commits.get(i);
+            if (commit.getError() != null) {
+                fail(root.relativize(commit.getTarget()).toString(), commit.getError());
+                continue;
+            }
+            (replacing.get(i) ? modified : created).add(commit.getTarget().toFile());
+            files++;
+            try {
+                bytes += Files.size(commit.getTarget());
+            } catch (IOException e) {
+                // Replaced again since the rename; it still counts as written.
+            }
+        }
+    }
+
+    private void abortGroup() {
+        for (PendingFile pending : group) {
+            discard(pending);
+        }
+        group.clear();
+    }
+
+    private void discard(PendingFile pending) {
+        try {
+            pending.channel.close();
+            Files.deleteIfExists(pending.temp);
+        } catch (IOException e) {
+            // Best effort; a leftover .part file is harmless.
+        }
+    }
+
+    private void fail(String name, IOException e) {
+        if (++failed <= MAX_REPORTED_FAILURES) {
+            failures.add(name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ftp_server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Shared pool of transfer buffers in a few size classes. Each thread keeps
+ * one buffer per class for itself, so the common acquire/release pair never
+ * touches shared state. Buffers larger than the biggest class are not pooled.
+ */
+public class BufferPool {
+
+    public static final int SMALL = 8 * 1024;
+    public static final int MEDIUM = 64 * 1024;
+    public static final int LARGE = 1024 * 1024;
+
+    private static final int[] SIZE_CLASSES = {SMALL, MEDIUM, LARGE};
+    private static final int[] SHARED_CAPACITY = {256, 64, 16};
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final ConcurrentLinkedQueue<byte[]>[] SHARED = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+    private static final AtomicInteger[] SHARED_SIZE = new AtomicInteger[SIZE_CLASSES.length];
+    private static final ThreadLocal<byte[][]> LOCAL = ThreadLocal.withInitial(() -> new byte[SIZE_CLASSES.length][]);
+
+    private static final AtomicLong acquired = new AtomicLong();
+    private static final AtomicLong localHits = new AtomicLong();
+    private static final AtomicLong sharedHits = new AtomicLong();
+    private static final AtomicLong allocations = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong discarded = new AtomicLong();
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            SHARED[i] = new ConcurrentLinkedQueue<>();
+            SHARED_SIZE[i] = new AtomicInteger();
+        }
+    }
+
+    public static class Stats {
+
+        private final long acquired;
+        private final long localHits;
+        private final long sharedHits;
+        private final long allocations;
+        private final long allocatedBytes;
+        private final long discarded;
+
+        Stats(long acquired, long localHits, long sharedHits, long allocations, long allocatedBytes, long discarded) {
+            this.acquired = acquired;
+            this.localHits = localHits;
+            this.sharedHits = sharedHits;
+            this.allocations = allocations;
+            this.allocatedBytes = allocatedBytes;
+            this.discarded = discarded;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    // Returns a buffer of at least minSize bytes; it may be larger.
+    public static byte[] acquire(int minSize) {
+        acquired.incrementAndGet();
+        int sizeClass = sizeClass(minSize);
+        if (sizeClass < 0) {
+            return allocate(minSize);
+        }
+
+        byte[][] local = LOCAL.get();
+        byte[] buffer = local[sizeClass];
+        if (buffer != null) {
+            local[sizeClass] = null;
+            localHits.incrementAndGet();
+            return buffer;
+        }
+        buffer = SHARED[sizeClass].poll();
+        if (buffer != null) {
+            SHARED_SIZE[sizeClass].decrementAndGet();
+            sharedHits.incrementAndGet();
+            return buffer;
+        }
+        return allocate(SIZE_CLASSES[sizeClass]);
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = exactSizeClass(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+
+        byte[][] local = LOCAL.get();
+        if (local[sizeClass] == null) {
+            local[sizeClass] = buffer;
+        } else if (SHARED_SIZE[sizeClass].incrementAndGet() <= SHARED_CAPACITY[sizeClass]) {
+            SHARED[sizeClass].offer(buffer);
+        } else {
+            SHARED_SIZE[sizeClass].decrementAndGet();
+            discarded.incrementAndGet();
+        }
+    }
+
+    public static Stats getStats() {
+        return new Stats(acquired.get(), localHits.get(), sharedHits.get(), allocations.get(), allocatedBytes.get(),
+                discarded.get());
+    }
+
+    private static byte[] allocate(int size) {
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(size);
+        return new byte[size];
+    }
+
+    private static int sizeClass(int minSize) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (minSize <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(int length) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (length == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,36 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class ChangeEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String KIND_CREATED = "created";
+    public static final String KIND_MODIFIED = "modified";
+    public static final String KIND_DELETED = "deleted";
+    public static final String KIND_RENAMED = "renamed";
+    // Too many changes were coalesced; the client should reload the directory.
+    public static final String KIND_RESYNC = "resync";
+
+    private String kind;
+    private String path;
+    private String from;
+
+    public ChangeEvent(String kind, String path, String from) {
+        this.kind = kind;
+        this.path = path;
+        this.from = from;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+}
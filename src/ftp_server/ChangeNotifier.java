@@ -0,0 +1,315 @@
+package ftp_server;
+
+import com.google.gson.Gson;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/*
+ * Pushes directory change events to subscribed clients. Events come from the
+ * backend's own mutations and from a WatchService over the subscribed user
+ * directories (for changes made outside the server). Each subscriber
+ * coalesces events per path and flushes them after a short debounce window.
+ */
+public class ChangeNotifier implements PathChangeListener {
+
+    private static final long DEBOUNCE_MS = 200;
+    private static final long HEARTBEAT_MS = 30_000;
+    private static final int MAX_PENDING_EVENTS = 1000;
+
+    private final FTP_Server serverGUI;
+    private final Path usersRoot;
+    private final String usersRootName;
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final Map<WatchKey, String> watchedUsers = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private volatile boolean closed;
+
+    private static class Subscriber {
+
+        private final LinkedHashMap<String, ChangeEvent> pending = new LinkedHashMap<>();
+        private boolean overflowed;
+
+        synchronized void add(ChangeEvent event) {
+            if (overflowed) {
+                return;
+            }
+            ChangeEvent previous = pending.get(event.getPath());
+            if (previous != null && ChangeEvent.KIND_RENAMED.equals(previous.getKind())
+                    && !ChangeEvent.KIND_DELETED.equals(event.getKind())) {
+                // The watcher reports our own rename again as a create; keep the richer event.
+                return;
+            }
+            if (ChangeEvent.KIND_DELETED.equals(event.getKind()) && isRenameSource(event.getPath())) {
+                return;
+            }
+            if (ChangeEvent.KIND_RENAMED.equals(event.getKind())) {
+                // Whatever the watcher already said about the old name is superseded by the rename.
+                pending.remove(event.getFrom());
+            }
+            pending.remove(event.getPath());
+            if (previous != null && ChangeEvent.KIND_CREATED.equals(previous.getKind())
+                    && ChangeEvent.KIND_DELETED.equals(event.getKind())) {
+                // Created and deleted within one window: nothing for the client to see.
+                return;
+            }
+            pending.put(event.getPath(), event);
+            if (pending.size() > MAX_PENDING_EVENTS) {
+                overflow();
+            }
+            notifyAll();
+        }
+
+        private boolean isRenameSource(String path) {
+            for (ChangeEvent event : pending.values()) {
+                if (ChangeEvent.KIND_RENAMED.equals(event.getKind()) && path.equals(event.getFrom())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean awaitEvents(long timeoutMs) throws InterruptedException {
+            if (pending.isEmpty() && !overflowed) {
+                wait(timeoutMs);
+            }
+            return !pending.isEmpty() || overflowed;
+        }
+
+        synchronized List<ChangeEvent> drain() {
+            List<ChangeEvent> events = new ArrayList<>();
+            if (overflowed) {
+                events.add(new ChangeEvent(ChangeEvent.KIND_RESYNC, null, null));
+                overflowed = false;
+            } else {
+                events.addAll(pending.values());
+            }
+            pending.clear();
+            return events;
+        }
+
+        synchronized void overflow() {
+            pending.clear();
+            overflowed = true;
+            notifyAll();
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+    }
+
+    public ChangeNotifier(FTP_Server serverGUI, File usersRoot) {
+        this.serverGUI = serverGUI;
+        this.usersRoot = usersRoot.getAbsoluteFile().toPath().normalize();
+        this.usersRootName = usersRoot.getPath().replace("\\", "/");
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(this::watchLoop, "directory-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            serverGUI.appendToConsole("Directory watching unavailable, only server-side changes will be pushed: "
+                    + e.getMessage());
+        }
+    }
+
+    /*
+     * Streams CHANGES frames for the user's directory until the client goes
+     * away or the server stops. Runs on, and occupies, the connection thread.
+     */
+    public void subscribe(String username, DataOutputStream dataOutputStream) throws IOException {
+        Subscriber subscriber = new Subscriber();
+        Set<Subscriber> userSubscribers = subscribers.computeIfAbsent(username, key -> new CopyOnWriteArraySet<>());
+        userSubscribers.add(subscriber);
+        watchUser(username);
+        try {
+            dataOutputStream.writeUTF("SUBSCRIBED");
+            dataOutputStream.flush();
+            while (!closed) {
+                if (!subscriber.awaitEvents(HEARTBEAT_MS)) {
+                    dataOutputStream.writeUTF("PING");
+                    dataOutputStream.flush();
+                    continue;
+                }
+                Thread.sleep(DEBOUNCE_MS);
+                List<ChangeEvent> events = subscriber.drain();
+                dataOutputStream.writeUTF("CHANGES");
+                dataOutputStream.writeUTF(new Gson().toJson(events));
+                dataOutputStream.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            userSubscribers.remove(subscriber);
+            if (userSubscribers.isEmpty()) {
+                unwatchUser(username);
+            }
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        for (Set<Subscriber> userSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : userSubscribers) {
+                subscriber.wake();
+            }
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Already closing down.
+            }
+        }
+    }
+
+    @Override
+    public void created(File file) {
+        publish(file.toPath(), ChangeEvent.KIND_CREATED, null);
+    }
+
+    @Override
+    public void modified(File file) {
+        publish(file.toPath(), ChangeEvent.KIND_MODIFIED, null);
+    }
+
+    @Override
+    public void deleted(File file) {
+        publish(file.toPath(), ChangeEvent.KIND_DELETED, null);
+    }
+
+    @Override
+    public void renamed(File from, File to) {
+        publish(to.toPath(), ChangeEvent.KIND_RENAMED, from.toPath());
+    }
+
+    private void publish(Path path, String kind, Path from) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(usersRoot) || absolute.equals(usersRoot) || isTemp(absolute)) {
+            return;
+        }
+        if (from != null && isTemp(from)) {
+            // A temp committed into place is, to a client, a new file.
+            kind = ChangeEvent.KIND_CREATED;
+            from = null;
+        }
+        String username = usersRoot.relativize(absolute).getName(0).toString();
+        Set<Subscriber> userSubscribers = subscribers.get(username);
+        if (userSubscribers == null || userSubscribers.isEmpty()) {
+            return;
+        }
+        ChangeEvent event = new ChangeEvent(kind, displayPath(absolute),
+                from == null ? null : displayPath(from.toAbsolutePath().normalize()));
+        for (Subscriber subscriber : userSubscribers) {
+            subscriber.add(event);
+        }
+    }
+
+    private static boolean isTemp(Path path) {
+        return path.getFileName() != null && Durability.isTemp(path.getFileName().toString());
+    }
+
+    // Same form as FileModel paths in directory listings.
+    private String displayPath(Path absolute) {
+        return usersRootName + "/" + usersRoot.relativize(absolute).toString().replace("\\", "/");
+    }
+
+    private void watchUser(String username) {
+        if (watchService == null || watchedUsers.containsValue(username)) {
+            return;
+        }
+        registerTree(usersRoot.resolve(username), username);
+    }
+
+    private void unwatchUser(String username) {
+        Iterator<Map.Entry<WatchKey, String>> it = watchedUsers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WatchKey, String> entry = it.next();
+            if (entry.getValue().equals(username)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private void registerTree(Path directory, String username) {
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try {
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedUsers.put(key, username);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        registerTree(entry, username);
+                    }
+                }
+            }
+        } catch (IOException | ClosedWatchServiceException e) {
+            serverGUI.appendToConsole("Could not watch directory " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                String username = watchedUsers.get(key);
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (username == null) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        Set<Subscriber> userSubscribers = subscribers.get(username);
+                        if (userSubscribers != null) {
+                            for (Subscriber subscriber : userSubscribers) {
+                                subscriber.overflow();
+                            }
+                        }
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path) event.context());
+                    if (isTemp(changed)) {
+                        continue; // Durability temps never show in listings.
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        registerTree(changed, username);
+                        publish(changed, ChangeEvent.KIND_CREATED, null);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        publish(changed, ChangeEvent.KIND_DELETED, null);
+                    } else if (!Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+                        // Directory mtime changes just echo changes to their children.
+                        publish(changed, ChangeEvent.KIND_MODIFIED, null);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedUsers.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Server stopping.
+        }
+    }
+}
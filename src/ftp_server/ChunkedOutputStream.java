@@ -0,0 +1,72 @@
+package ftp_server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Frames a stream of unknown length as [int length][bytes]... followed by a
+ * zero length chunk. Closing ends the stream but leaves the socket open.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private final DataOutputStream dataOutputStream;
+    private byte[] chunk = BufferPool.acquire(BufferPool.MEDIUM);
+    private int count;
+    private boolean closed;
+
+    public ChunkedOutputStream(DataOutputStream dataOutputStream) {
+        this.dataOutputStream = dataOutputStream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunk.length) {
+            writeChunk();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunk.length) {
+                writeChunk();
+            }
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        dataOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                writeChunk();
+                dataOutputStream.writeInt(0);
+                dataOutputStream.flush();
+            } finally {
+                BufferPool.release(chunk);
+                chunk = null;
+            }
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (count > 0) {
+            dataOutputStream.writeInt(count);
+            dataOutputStream.write(chunk, 0, count);
+            count = 0;
+        }
+    }
+}
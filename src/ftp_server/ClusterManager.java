@@ -0,0 +1,399 @@
+package ftp_server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+ * Cluster mode. Nodes share the MySQL user database; each user's files live
+ * on the node the hash ring picks for the username (the primary), and are
+ * copied asynchronously to the next node on the ring (the secondary).
+ *
+ * Configured with system properties, identical on every node except self:
+ *   ftp.cluster.nodes        a=127.0.0.1:4321,b=127.0.0.1:4322,c=127.0.0.1:4323
+ *   ftp.cluster.self         a
+ *   ftp.cluster.secret       shared secret required on REPLICATE_* commands (mandatory)
+ *   ftp.cluster.virtualNodes ring points per node (default 128)
+ * Without ftp.cluster.nodes the server runs standalone, owns every user and
+ * refuses all REPLICATE_* commands.
+ *
+ * Replication follows the path change listener: writes on a primary are
+ * queued and replayed on the secondary with REPLICATE_PUT / _MKDIR / _DELETE
+ * / _RENAME, addressed by username and path relative to the user directory.
+ */
+public class ClusterManager implements PathChangeListener {
+
+    public static final String OP_PUT = "REPLICATE_PUT";
+    public static final String OP_MKDIR = "REPLICATE_MKDIR";
+    public static final String OP_DELETE = "REPLICATE_DELETE";
+    public static final String OP_RENAME = "REPLICATE_RENAME";
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("ftp.cluster.replicationQueue", 10_000);
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int REPLY_TIMEOUT_MS = 60_000;
+
+    private final FTP_Server serverGUI;
+    private final Path usersRoot;
+    private final ClusterNode self;
+    private final HashRing ring;
+    private final List<ClusterNode> nodes;
+    private final String secret;
+    private final Map<String, Replicator> replicators = new LinkedHashMap<>();
+    private final ThreadLocal<Boolean> applyingReplica = ThreadLocal.withInitial(() -> false);
+
+    private static class ReplicationTask {
+
+        final String op;
+        final String username;
+        final String path;
+        final String target;
+        int attempts;
+
+        ReplicationTask(String op, String username, String path, String target) {
+            this.op = op;
+            this.username = username;
+            this.path = path;
+            this.target = target;
+        }
+    }
+
+    public static class Status {
+
+        private final String self;
+        private final List<ClusterNode> nodes;
+        private final Map<String, Long> queued = new LinkedHashMap<>();
+        private final Map<String, Long> replicated = new LinkedHashMap<>();
+        private final Map<String, Long> dropped = new LinkedHashMap<>();
+
+        Status(String self, List<ClusterNode> nodes) {
+            this.self = self;
+            this.nodes = nodes;
+        }
+    }
+
+    public ClusterManager(FTP_Server serverGUI, File usersRoot, int localPort) {
+        this.serverGUI = serverGUI;
+        this.usersRoot = usersRoot.getAbsoluteFile().toPath().normalize();
+        this.secret = System.getProperty("ftp.cluster.secret", "");
+        this.nodes = parseNodes(System.getProperty("ftp.cluster.nodes", ""));
+        String selfId = System.getProperty("ftp.cluster.self", "");
+        ClusterNode found = null;
+        for (ClusterNode node : nodes) {
+            if (node.getId().equals(selfId)) {
+                found = node;
+            }
+        }
+        if (found == null) {
+            // Standalone: a one-node ring that owns everything.
+            found = new ClusterNode(selfId.isEmpty() ? "local" : selfId, "127.0.0.1", localPort);
+            nodes.clear();
+            nodes.add(found);
+        }
+        if (nodes.size() > 1 && secret.isEmpty()) {
+            throw new IllegalArgumentException("ftp.cluster.nodes needs a non-empty ftp.cluster.secret");
+        }
+        this.self = found;
+        this.ring = new HashRing(nodes, Integer.getInteger("ftp.cluster.virtualNodes", 128));
+        for (ClusterNode node : nodes) {
+            if (node != self) {
+                replicators.put(node.getId(), new Replicator(node));
+            }
+        }
+    }
+
+    public boolean isClustered() {
+        return nodes.size() > 1;
+    }
+
+    public ClusterNode getSelf() {
+        return self;
+    }
+
+    public ClusterNode primaryOf(String username) {
+        return ring.primaryOf(username);
+    }
+
+    public boolean isLocal(String username) {
+        return username == null || primaryOf(username) == self;
+    }
+
+    // Registration can land on any node; the user's directory belongs on their primary.
+    public void createUserDirectory(String username) {
+        ClusterNode primary = primaryOf(username);
+        if (primary != self) {
+            replicators.get(primary.getId()).offer(new ReplicationTask(OP_MKDIR, username, "", null));
+        }
+    }
+
+    // Always false on a standalone server, which has no peers to accept replicas from.
+    public boolean isValidSecret(String presented) {
+        return isClustered() && !secret.isEmpty() && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                String.valueOf(presented).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Changes made while applying a replica must not be replicated again.
+    public void runAsReplica(Runnable apply) {
+        applyingReplica.set(true);
+        try {
+            apply.run();
+        } finally {
+            applyingReplica.set(false);
+        }
+    }
+
+    public void start() {
+        for (Replicator replicator : replicators.values()) {
+            replicator.start();
+        }
+        if (isClustered()) {
+            serverGUI.appendToConsole("Cluster node " + self + " of " + nodes);
+        }
+    }
+
+    public void shutdown() {
+        for (Replicator replicator : replicators.values()) {
+            replicator.interrupt();
+        }
+    }
+
+    public Status getStatus() {
+        Status status = new Status(self.getId(), nodes);
+        for (Map.Entry<String, Replicator> entry : replicators.entrySet()) {
+            status.queued.put(entry.getKey(), (long) entry.getValue().queue.size());
+            status.replicated.put(entry.getKey(), entry.getValue().replicated.get());
+            status.dropped.put(entry.getKey(), entry.getValue().dropped.get());
+        }
+        return status;
+    }
+
+    @Override
+    public void created(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            // A copied or moved-in tree: replicate every directory and file under it.
+            try (Stream<Path> tree = Files.walk(path)) {
+                tree.forEach(entry -> enqueue(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) ? OP_MKDIR : OP_PUT,
+                        entry, null));
+            } catch (IOException e) {
+                serverGUI.appendToConsole("Cannot walk " + path + " for replication: " + e.getMessage());
+            }
+        } else {
+            enqueue(OP_PUT, path, null);
+        }
+    }
+
+    @Override
+    public void modified(File file) {
+        enqueue(OP_PUT, file.getAbsoluteFile().toPath().normalize(), null);
+    }
+
+    @Override
+    public void deleted(File file) {
+        enqueue(OP_DELETE, file.getAbsoluteFile().toPath().normalize(), null);
+    }
+
+    @Override
+    public void renamed(File from, File to) {
+        enqueue(OP_RENAME, from.getAbsoluteFile().toPath().normalize(), to.getAbsoluteFile().toPath().normalize());
+    }
+
+    private void enqueue(String op, Path path, Path target) {
+        if (!isClustered() || applyingReplica.get() || !path.startsWith(usersRoot) || path.equals(usersRoot)) {
+            return;
+        }
+        Path relative = usersRoot.relativize(path);
+        String username = relative.getName(0).toString();
+        if (!isLocal(username)) {
+            return;
+        }
+        List<ClusterNode> replicas = ring.replicasOf(username, 2);
+        if (replicas.size() < 2) {
+            return;
+        }
+        String relativePath = userRelative(relative);
+        String relativeTarget = null;
+        if (target != null) {
+            if (!target.startsWith(usersRoot.resolve(username))) {
+                return;
+            }
+            relativeTarget = userRelative(usersRoot.relativize(target));
+        }
+        replicators.get(replicas.get(1).getId()).offer(new ReplicationTask(op, username, relativePath, relativeTarget));
+    }
+
+    // Path inside the user directory, '/' separated; empty for the user directory itself.
+    private static String userRelative(Path relative) {
+        if (relative.getNameCount() <= 1) {
+            return "";
+        }
+        return relative.subpath(1, relative.getNameCount()).toString().replace("\\", "/");
+    }
+
+    private static List<ClusterNode> parseNodes(String spec) {
+        List<ClusterNode> parsed = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (equals <= 0 || colon <= equals) {
+                continue;
+            }
+            try {
+                parsed.add(new ClusterNode(entry.substring(0, equals), entry.substring(equals + 1, colon),
+                        Integer.parseInt(entry.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                // Skip malformed entries.
+            }
+        }
+        return parsed;
+    }
+
+    /*
+     * One ordered stream of replication commands to one peer over a single
+     * reused connection. Failed commands are retried a few times, then
+     * dropped and counted; the peer catches up on the next write.
+     */
+    private class Replicator extends Thread {
+
+        final ClusterNode peer;
+        final LinkedBlockingQueue<ReplicationTask> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicLong replicated = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Replicator(ClusterNode peer) {
+            super("replicator-" + peer.getId());
+            this.peer = peer;
+            setDaemon(true);
+        }
+
+        void offer(ReplicationTask task) {
+            if (!queue.offer(task)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                ReplicationTask task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                while (true) {
+                    try {
+                        send(task);
+                        replicated.incrementAndGet();
+                        break;
+                    } catch (IOException e) {
+                        disconnect();
+                        if (++task.attempts >= MAX_ATTEMPTS) {
+                            dropped.incrementAndGet();
+                            serverGUI.appendToConsole("Replication to " + peer + " failed, dropping " + task.op + " "
+                                    + task.username + "/" + task.path + ": " + e.getMessage());
+                            break;
+                        }
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MS);
+                        } catch (InterruptedException interrupted) {
+                            disconnect();
+                            return;
+                        }
+                    }
+                }
+            }
+            disconnect();
+        }
+
+        private void send(ReplicationTask task) throws IOException {
+            File file = usersRoot.resolve(task.username).resolve(task.path).toFile();
+            if (OP_PUT.equals(task.op) && !file.isFile()) {
+                return; // Deleted or renamed since; that change is queued behind this one.
+            }
+            connect();
+            out.writeUTF(task.op);
+            out.writeUTF(secret);
+            out.writeUTF(task.username);
+            out.writeUTF(task.path);
+            if (OP_RENAME.equals(task.op)) {
+                out.writeUTF(task.target);
+            } else if (OP_PUT.equals(task.op)) {
+                sendBody(file);
+            }
+            out.flush();
+            String reply = in.readUTF();
+            if (!"REPLICATED".equals(reply)) {
+                throw new IOException("Peer answered " + reply);
+            }
+        }
+
+        private void sendBody(File file) throws IOException {
+            long size = file.length();
+            out.writeLong(size);
+            byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+            try (InputStream body = Files.newInputStream(file.toPath())) {
+                long remaining = size;
+                while (remaining > 0) {
+                    int n = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        // Truncated while sending; the stream is out of sync, so start over on a new connection.
+                        throw new IOException(file + " shrank during replication");
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+
+        private void connect() throws IOException {
+            if (socket != null) {
+                return;
+            }
+            Socket connection = new Socket();
+            connection.connect(new InetSocketAddress(peer.getHost(), peer.getPort()), CONNECT_TIMEOUT_MS);
+            connection.setSoTimeout(REPLY_TIMEOUT_MS);
+            socket = connection;
+            in = new DataInputStream(connection.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), BufferPool.MEDIUM));
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Dropping it anyway.
+                }
+                socket = null;
+                in = null;
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class ClusterNode implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String id;
+    private String host;
+    private int port;
+
+    public ClusterNode(String id, String host, int port) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return id + "@" + host + ":" + port;
+    }
+}
@@ -0,0 +1,270 @@
+package ftp_server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * rsync-style delta transfer. The server publishes per-block signatures of
+ * its copy (a rolling weak checksum plus MD5), the client answers with a
+ * stream of "copy block" and literal-data instructions, and the new file is
+ * rebuilt next to the old one, verified with SHA-256 and swapped in.
+ *
+ * Weak checksum of bytes x[0..n): a = sum(x[i]) mod 2^16,
+ * b = sum((n - i) * x[i]) mod 2^16, checksum = (b << 16) | a, bytes unsigned.
+ */
+public class DeltaSync {
+
+    public static final byte OP_END = 0;
+    public static final byte OP_COPY = 1;
+    public static final byte OP_DATA = 2;
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MAX_LITERAL = 1024 * 1024;
+    private static final int CACHED_SIGNATURES = 64;
+
+    public static class Signature {
+
+        final long length;
+        final long lastModified;
+        final int blockSize;
+        final int[] weak;
+        final byte[][] strong;
+
+        Signature(long length, long lastModified, int blockSize, int[] weak, byte[][] strong) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return weak.length;
+        }
+    }
+
+    public static class Result {
+
+        private final long bytes;
+        private final long copiedBytes;
+        private final long literalBytes;
+
+        Result(long bytes, long copiedBytes, long literalBytes) {
+            this.bytes = bytes;
+            this.copiedBytes = copiedBytes;
+            this.literalBytes = literalBytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Signature> signatures = new LinkedHashMap<String, Signature>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Signature> eldest) {
+            return size() > CACHED_SIGNATURES;
+        }
+    };
+
+    public Signature getSignature(File file) throws IOException {
+        String key = key(file);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (signatures) {
+            Signature cached = signatures.get(key);
+            if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                return cached;
+            }
+        }
+
+        Signature signature = computeSignature(file, length, lastModified);
+        if (file.lastModified() == lastModified && file.length() == length) {
+            synchronized (signatures) {
+                signatures.put(key, signature);
+            }
+        }
+        return signature;
+    }
+
+    public void invalidate(File file) {
+        String key = key(file);
+        String prefix = key + File.separator;
+        synchronized (signatures) {
+            signatures.keySet().removeIf(cached -> cached.equals(key) || cached.startsWith(prefix));
+        }
+    }
+
+    public static void writeSignature(Signature signature, DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeInt(signature.blockSize);
+        dataOutputStream.writeLong(signature.length);
+        dataOutputStream.writeLong(signature.lastModified);
+        dataOutputStream.writeInt(signature.weak.length);
+        for (int i = 0; i < signature.weak.length; i++) {
+            dataOutputStream.writeInt(signature.weak[i]);
+            dataOutputStream.write(signature.strong[i]);
+        }
+    }
+
+    /*
+     * Applies an instruction stream against the basis signature and swaps the
+     * result in. Returns null if the rebuilt file fails the checksum and throws
+     * if the stream is malformed; the original file is untouched either way.
+     */
+    public Result apply(File target, Signature basis, DataInputStream dataInputStream) throws IOException {
+        Path temp = Durability.createTemp(target.toPath());
+        MessageDigest sha256 = digest("SHA-256");
+        long copiedBytes = 0;
+        long literalBytes = 0;
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        boolean complete = false;
+        try (FileChannel basisChannel = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (true) {
+                byte op = dataInputStream.readByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    int firstBlock = dataInputStream.readInt();
+                    int blockCount = dataInputStream.readInt();
+                    if (firstBlock < 0 || blockCount <= 0 || (long) firstBlock + blockCount > basis.weak.length) {
+                        throw new IOException("Block range out of bounds: " + firstBlock + "+" + blockCount);
+                    }
+                    long position = (long) firstBlock * basis.blockSize;
+                    long end = Math.min(basis.length, (long) (firstBlock + blockCount) * basis.blockSize);
+                    copiedBytes += copy(basisChannel, position, end - position, out, sha256, buffer);
+                } else if (op == OP_DATA) {
+                    int length = dataInputStream.readInt();
+                    if (length < 0 || length > MAX_LITERAL) {
+                        throw new IOException("Invalid literal length: " + length);
+                    }
+                    literalBytes += length;
+                    while (length > 0) {
+                        int n = Math.min(buffer.length, length);
+                        dataInputStream.readFully(buffer, 0, n);
+                        sha256.update(buffer, 0, n);
+                        writeFully(out, ByteBuffer.wrap(buffer, 0, n));
+                        length -= n;
+                    }
+                } else {
+                    throw new IOException("Unknown delta instruction: " + op);
+                }
+            }
+
+            byte[] expected = new byte[32];
+            dataInputStream.readFully(expected);
+            if (!MessageDigest.isEqual(expected, sha256.digest())) {
+                return null;
+            }
+            complete = true;
+        } finally {
+            BufferPool.release(buffer);
+            if (!complete) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        Durability.commit(temp, target.toPath());
+        invalidate(target);
+        return new Result(copiedBytes + literalBytes, copiedBytes, literalBytes);
+    }
+
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    // Slides a window of blockSize one byte: drops outByte, appends inByte.
+    public static int rollChecksum(int checksum, int blockSize, byte outByte, byte inByte) {
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        a = (a - (outByte & 0xff) + (inByte & 0xff)) & 0xffff;
+        b = (b - blockSize * (outByte & 0xff) + a) & 0xffff;
+        return (b << 16) | a;
+    }
+
+    static int chooseBlockSize(long length) {
+        // Roughly sqrt(length), as rsync does, rounded to a power of two.
+        int target = (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, (long) Math.sqrt(length)));
+        return Integer.highestOneBit(target);
+    }
+
+    private static Signature computeSignature(File file, long length, long lastModified) throws IOException {
+        int blockSize = chooseBlockSize(length);
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[blockCount];
+        byte[][] strong = new byte[blockCount][];
+        MessageDigest md5 = digest("MD5");
+        byte[] block = new byte[blockSize];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            for (int i = 0; i < blockCount; i++) {
+                int n = in.readNBytes(block, 0, blockSize);
+                weak[i] = weakChecksum(block, 0, n);
+                md5.update(block, 0, n);
+                strong[i] = md5.digest();
+            }
+        }
+        return new Signature(length, lastModified, blockSize, weak, strong);
+    }
+
+    private static long copy(FileChannel source, long position, long count, FileChannel out, MessageDigest sha256,
+            byte[] buffer) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, count - copied));
+            int n = source.read(chunk, position + copied);
+            if (n <= 0) {
+                throw new IOException("Basis file shrank during delta upload");
+            }
+            sha256.update(buffer, 0, n);
+            writeFully(out, ByteBuffer.wrap(buffer, 0, n));
+            copied += n;
+        }
+        return copied;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String key(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+}
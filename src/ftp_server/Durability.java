@@ -0,0 +1,254 @@
+package ftp_server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * How uploaded files reach the disk, chosen with ftp.durability:
+ *   none  - write a temp file and rename it into place; the OS flushes whenever it likes
+ *   fsync - fsync every file before its rename and the directory after it
+ *   group - like fsync, but concurrent commits within a short window share one
+ *           round of syncs (see GroupCommitter)
+ * Every mode writes to a temp file first, so readers never see a partial file.
+ */
+public class Durability {
+
+    public static final String MODE_NONE = "none";
+    public static final String MODE_FSYNC = "fsync";
+    public static final String MODE_GROUP = "group";
+
+    private static final String TEMP_SUFFIX = ".part";
+
+    private static final String MODE = parseMode(System.getProperty("ftp.durability", MODE_GROUP));
+
+    private static final AtomicLong commits = new AtomicLong();
+    private static final AtomicLong fileSyncs = new AtomicLong();
+    private static final AtomicLong directorySyncs = new AtomicLong();
+    private static final AtomicLong commitNanos = new AtomicLong();
+
+    public static class Commit {
+
+        final Path temp;
+        final Path target;
+        IOException error;
+
+        public Commit(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    public static class Stats {
+
+        private final String mode;
+        private final long commits;
+        private final long fileSyncs;
+        private final long directorySyncs;
+        private final long groups;
+        private final double averageCommitMillis;
+
+        Stats(String mode, long commits, long fileSyncs, long directorySyncs, long groups, double averageCommitMillis) {
+            this.mode = mode;
+            this.commits = commits;
+            this.fileSyncs = fileSyncs;
+            this.directorySyncs = directorySyncs;
+            this.groups = groups;
+            this.averageCommitMillis = averageCommitMillis;
+        }
+    }
+
+    private static class GroupHolder {
+
+        static final GroupCommitter INSTANCE = new GroupCommitter(Long.getLong("ftp.durability.groupWindowMs", 2L));
+    }
+
+    public static String getMode() {
+        return MODE;
+    }
+
+    /*
+     * Creates an empty temp file next to the target, named .<name>.<random>.part.
+     * Every writer gets its own, so concurrent uploads of one name cannot
+     * interleave. Files.createFile keeps the default permissions, which
+     * Files.createTempFile would narrow to owner-only.
+     */
+    public static Path createTemp(Path target) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        while (true) {
+            Path temp = absolute.resolveSibling("." + absolute.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + TEMP_SUFFIX);
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // Another writer drew the same name; draw again.
+            }
+        }
+    }
+
+    // Whether a file name is one of the temp files above, still being written.
+    public static boolean isTemp(String name) {
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /*
+     * Deletes temp files under root that have not been written to for
+     * maxAgeMillis: uploads cut off by a crash or a dropped connection that
+     * never reached their commit or cleanup. Returns how many were removed.
+     */
+    public static int sweepStaleTemps(Path root, long maxAgeMillis) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int[] removed = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && isTemp(file.getFileName().toString())
+                        && attributes.lastModifiedTime().toMillis() < cutoff) {
+                    try {
+                        Files.deleteIfExists(file);
+                        removed[0]++;
+                    } catch (IOException e) {
+                        // Left for the next sweep.
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return removed[0];
+    }
+
+    // Moves a fully written and closed temp file over its target with the configured guarantee.
+    public static void commit(Path temp, Path target) throws IOException {
+        Commit commit = new Commit(temp, target);
+        commitAll(Collections.singletonList(commit));
+        if (commit.error != null) {
+            throw commit.error;
+        }
+    }
+
+    /*
+     * Commits several files at once. Failures are recorded on each Commit
+     * rather than thrown, and a failed commit's temp file is removed.
+     */
+    public static void commitAll(List<Commit> batch) {
+        commitAll(batch, MODE);
+    }
+
+    // With an explicit mode, so DurabilityBenchmark can compare them in one run.
+    static void commitAll(List<Commit> batch, String mode) {
+        long start = System.nanoTime();
+        switch (mode) {
+            case MODE_NONE:
+                renameAll(batch);
+                break;
+            case MODE_FSYNC:
+                for (Commit commit : batch) {
+                    syncFile(commit);
+                }
+                renameAll(batch);
+                syncDirectories(batch);
+                break;
+            default:
+                GroupHolder.INSTANCE.commit(batch);
+                break;
+        }
+        commits.addAndGet(batch.size());
+        commitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    public static Stats getStats() {
+        long total = commits.get();
+        long groups = MODE_GROUP.equals(MODE) ? GroupHolder.INSTANCE.getGroups() : 0;
+        return new Stats(MODE, total, fileSyncs.get(), directorySyncs.get(), groups,
+                total == 0 ? 0 : commitNanos.get() / 1_000_000.0 / total);
+    }
+
+    static void syncFile(Commit commit) {
+        if (commit.error != null) {
+            return;
+        }
+        // fsync is per file, not per descriptor, so a fresh channel flushes what the writer left behind.
+        try (FileChannel channel = FileChannel.open(commit.temp, StandardOpenOption.WRITE)) {
+            channel.force(false);
+            fileSyncs.incrementAndGet();
+        } catch (IOException e) {
+            commit.error = e;
+        }
+    }
+
+    static void renameAll(List<Commit> batch) {
+        for (Commit commit : batch) {
+            if (commit.error == null) {
+                try {
+                    Files.move(commit.temp, commit.target, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    commit.error = e;
+                }
+            }
+            if (commit.error != null) {
+                try {
+                    Files.deleteIfExists(commit.temp);
+                } catch (IOException e) {
+                    // A leftover temp file is harmless.
+                }
+            }
+        }
+    }
+
+    // Makes the renames themselves durable; each directory is synced once however many files landed in it.
+    static void syncDirectories(List<Commit> batch) {
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Commit commit : batch) {
+            if (commit.error == null && commit.target.toAbsolutePath().getParent() != null) {
+                directories.add(commit.target.toAbsolutePath().getParent());
+            }
+        }
+        for (Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+                directorySyncs.incrementAndGet();
+            } catch (IOException e) {
+                // Not every platform can open a directory for syncing (Windows cannot).
+            }
+        }
+    }
+
+    private static String parseMode(String mode) {
+        String normalized = mode.trim().toLowerCase(Locale.ROOT);
+        if (MODE_NONE.equals(normalized) || MODE_FSYNC.equals(normalized)) {
+            return normalized;
+        }
+        return MODE_GROUP;
+    }
+}
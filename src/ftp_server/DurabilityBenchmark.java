@@ -0,0 +1,117 @@
+package ftp_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/*
+ * Upload throughput under each ftp.durability mode. Several writers each
+ * write and commit small files the way uploads do (temp file, then
+ * Durability commit), into a scratch directory on the disk being measured.
+ *
+ *   java -cp ... ftp_server.DurabilityBenchmark [directory] [writers] [files per writer] [KB per file]
+ */
+public class DurabilityBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "durability-bench");
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int filesPerWriter = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int kilobytes = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.printf("%d writers x %d files of %d KB in %s%n%n", writers, filesPerWriter, kilobytes,
+                directory.toAbsolutePath());
+        System.out.printf("%-6s %10s %10s %12s %12s %12s%n", "mode", "files/s", "MB/s", "commit mean", "commit p50",
+                "commit p99");
+        for (String mode : new String[]{Durability.MODE_NONE, Durability.MODE_FSYNC, Durability.MODE_GROUP}) {
+            Path scratch = Files.createDirectories(directory.resolve(mode));
+            try {
+                run(mode, scratch, writers, filesPerWriter, kilobytes * 1024);
+            } finally {
+                deleteTree(scratch);
+            }
+        }
+    }
+
+    private static void run(String mode, Path scratch, int writers, int filesPerWriter, int fileSize)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            results.add(pool.submit(() -> write(mode, scratch, writer, filesPerWriter, fileSize)));
+        }
+        List<Long> latencies = new ArrayList<>();
+        for (Future<List<Long>> result : results) {
+            latencies.addAll(result.get());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        Collections.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        int files = latencies.size();
+        System.out.printf("%-6s %10.0f %10.1f %10.2fms %10.2fms %10.2fms%n", mode, files / seconds,
+                (double) files * fileSize / (1024 * 1024) / seconds, millis(total / files),
+                millis(percentile(latencies, 50)), millis(percentile(latencies, 99)));
+    }
+
+    // Returns the commit latency of every file this writer wrote.
+    private static List<Long> write(String mode, Path scratch, int writer, int files, int fileSize)
+            throws IOException {
+        byte[] body = new byte[fileSize];
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            Path target = scratch.resolve("w" + writer + "-" + i + ".bin");
+            Path temp = Durability.createTemp(target);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer data = ByteBuffer.wrap(body);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Durability.Commit commit = new Durability.Commit(temp, target);
+            long start = System.nanoTime();
+            Durability.commitAll(Collections.singletonList(commit), mode);
+            latencies.add(System.nanoTime() - start);
+            if (commit.getError() != null) {
+                throw commit.getError();
+            }
+        }
+        return latencies;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Nearest-rank percentile of an already sorted list.
+    private static long percentile(List<Long> sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
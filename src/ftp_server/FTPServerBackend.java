@@ -1,41 +1,164 @@
 package ftp_server;
 
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class FTPServerBackend {
 
-    private static final int PORT = 4321;
+    private static final int PORT = Integer.getInteger("ftp.port", 4321);
     private static final String DB_URL = "jdbc:mysql://localhost:3306/ftp_database";
     private static final String DB_USER = "ftp";
     private static final String DB_PASSWORD = "admin";
+    private static final String USERS_DIRECTORY = System.getProperty("ftp.usersRoot", "users_directories");
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    private static final int MAX_MANIFEST_BYTES = 16 * 1024 * 1024;
+    private static final int PASSWORD_COLUMN_SIZE = 255;
+    private static final long PASSWORD_TIMEOUT_MS = 30_000;
+    /*
+     * Commands built on java.io.File rather than Storage. With a memory or
+     * object store backend they would work on a second, local copy of the
+     * users' files, so they are refused instead.
+     */
+    private static final Set<String> LOCAL_DISK_COMMANDS = Set.of("PASV_DOWNLOAD", "PASV_UPLOAD", "BATCH_UPLOAD",
+            "DELTA_SIGNATURE", "DELTA_UPLOAD", "CREATE_NEW_DIR", "DELETE_DIR", "RENAME_DIR", "DELETE_DIR_PROGRESS",
+            "DIR_USAGE", "COPY_DIR", "DOWNLOAD_DIR_ARCHIVE", "SUBSCRIBE_DIR", "SEARCH", "GET_THUMBNAIL", "SUBMIT_JOB",
+            "JOB_STATUS", "JOB_CANCEL", "LIST_JOBS");
     private final FTP_Server serverGUI;
     private final File tempDirectory;
     private final ExecutorService threadPool;
+    private final JobScheduler jobScheduler;
+    private final HotFileCache hotFileCache;
+    private final ChangeNotifier changeNotifier;
+    private final DeltaSync deltaSync = new DeltaSync();
+    private final SearchIndex searchIndex;
+    private final ThumbnailService thumbnailService;
+    private final PassiveDataServer passiveDataServer;
+    private final PasswordService passwordService = new PasswordService();
+    private final AuditLog auditLog;
+    private final ClusterManager clusterManager;
+    private final Storage storage;
+    private final PathChangeListener pathChanges = new PathChangeListener() {
+        @Override
+        public void created(File file) {
+            hotFileCache.invalidate(file);
+            deltaSync.invalidate(file);
+            searchIndex.created(file);
+            changeNotifier.created(file);
+            thumbnailService.created(file);
+            clusterManager.created(file);
+        }
+
+        @Override
+        public void modified(File file) {
+            hotFileCache.invalidate(file);
+            deltaSync.invalidate(file);
+            searchIndex.modified(file);
+            changeNotifier.modified(file);
+            thumbnailService.modified(file);
+            clusterManager.modified(file);
+        }
+
+        @Override
+        public void deleted(File file) {
+            hotFileCache.invalidate(file);
+            deltaSync.invalidate(file);
+            searchIndex.deleted(file);
+            changeNotifier.deleted(file);
+            thumbnailService.deleted(file);
+            clusterManager.deleted(file);
+        }
+
+        @Override
+        public void renamed(File from, File to) {
+            hotFileCache.invalidate(from);
+            hotFileCache.invalidate(to);
+            deltaSync.invalidate(from);
+            deltaSync.invalidate(to);
+            searchIndex.renamed(from, to);
+            changeNotifier.renamed(from, to);
+            thumbnailService.renamed(from, to);
+            clusterManager.renamed(from, to);
+        }
+    };
     private ServerSocket serverSocket;
 
     public FTPServerBackend(FTP_Server serverGUI, File downloadDirectory, File tempDirectory) {
         this.serverGUI = serverGUI;
         this.tempDirectory = tempDirectory;
         this.threadPool = Executors.newCachedThreadPool();
+        this.hotFileCache = new HotFileCache();
+        this.changeNotifier = new ChangeNotifier(serverGUI, new File(USERS_DIRECTORY));
+        this.searchIndex = new SearchIndex(serverGUI, new File(USERS_DIRECTORY));
+        this.thumbnailService = new ThumbnailService(serverGUI, new File("thumbnail_cache"));
+        this.jobScheduler = new JobScheduler(serverGUI, new File("jobs"), pathChanges);
+        this.auditLog = new AuditLog(serverGUI, new File(USERS_DIRECTORY), DB_URL, DB_USER, DB_PASSWORD,
+                new File("audit", "audit-fallback.jsonl"));
+        this.passiveDataServer = new PassiveDataServer(serverGUI, hotFileCache, pathChanges, auditLog);
+        this.clusterManager = new ClusterManager(serverGUI, new File(USERS_DIRECTORY), PORT);
+        this.storage = Storage.create(new File(USERS_DIRECTORY));
+        if (clusterManager.isClustered() && !isLocalStorage()) {
+            // Replication ships files from the users directory, which this backend does not use.
+            throw new IllegalArgumentException("ftp.cluster.nodes needs ftp.storage=local, not " + storage);
+        }
     }
 
     public void startServer() {
+        if (isLocalStorage()) {
+            searchIndex.buildAsync();
+            jobScheduler.resumePersistedJobs();
+        } else {
+            serverGUI.appendToConsole(getCurrentTime() + "Search, jobs and other local-disk commands are disabled with "
+                    + storage + "\n");
+        }
+        passiveDataServer.start();
+        clusterManager.start();
+        serverGUI.appendToConsole(getCurrentTime() + "Storage: " + storage + "\n");
+        threadPool.submit(this::checkPasswordColumn);
+        threadPool.submit(this::sweepStaleTemps);
         new Thread(this::runServer).start();
     }
 
+    // Temp files a crash left behind would otherwise sit in user directories for good.
+    private void sweepStaleTemps() {
+        long maxAge = TimeUnit.MINUTES.toMillis(Long.getLong("ftp.durability.staleTempMinutes", 60L));
+        for (File root : new File[]{new File(USERS_DIRECTORY), tempDirectory}) {
+            try {
+                int removed = Durability.sweepStaleTemps(root.toPath(), maxAge);
+                if (removed > 0) {
+                    serverGUI.appendToConsole(getCurrentTime() + "Removed " + removed + " stale upload temp files from "
+                            + root + "\n");
+                }
+            } catch (IOException e) {
+                serverGUI.appendToConsole(getCurrentTime() + "Cannot sweep " + root + " for stale temp files: "
+                        + e.getMessage() + "\n");
+            }
+        }
+    }
+
     private void runServer() {
         try {
             serverSocket = new ServerSocket(PORT);
@@ -60,6 +183,8 @@ public class FTPServerBackend {
     }
 
     private void handleClientConnection(Socket clientSocket) {
+        FtpEvents.Session session = new FtpEvents.Session();
+        session.begin();
         try (DataInputStream dataInputStream = new DataInputStream(clientSocket.getInputStream()); DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream())) {
             while (!serverSocket.isClosed()) {
                 try {
@@ -72,6 +197,7 @@ public class FTPServerBackend {
         } catch (IOException e) {
             serverGUI.appendToConsole(getCurrentTime() + "Error handling client connection: " + e.getMessage());
         } finally {
+            FtpEvents.endSession(addressOf(clientSocket), session);
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -82,6 +208,27 @@ public class FTPServerBackend {
 
     private void handleClientRequest(String type, DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
             throws IOException {
+        FtpEvents.Command event = new FtpEvents.Command();
+        FtpEvents.beginCommand();
+        event.begin();
+        boolean failed = true;
+        try {
+            dispatchRequest(type, dataInputStream, dataOutputStream, clientSocket);
+            failed = false;
+        } finally {
+            FtpEvents.endCommand(type, failed, event);
+        }
+    }
+
+    private void dispatchRequest(String type, DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
+        if (!isLocalStorage() && LOCAL_DISK_COMMANDS.contains(type)) {
+            dataOutputStream.writeUTF("UNSUPPORTED_STORAGE");
+            dataOutputStream.writeUTF(type + " is not supported with " + storage);
+            dataOutputStream.flush();
+            // The request body is still unread, so this connection cannot take another command.
+            throw new IOException(type + " refused: storage is " + storage);
+        }
         switch (type) {
             case "SEND_FILE":
                 handleSendFile(dataInputStream, dataOutputStream, clientSocket);
@@ -96,7 +243,7 @@ public class FTPServerBackend {
                 handleLoadDirectory(dataInputStream, dataOutputStream, clientSocket);
                 break;
             case "EXISTED_CONNECTION":
-                handleExistedConnection(dataInputStream, dataOutputStream);
+                handleExistedConnection(dataInputStream, dataOutputStream, clientSocket);
                 break;
             case "DOWNLOAD_FILE":
                 handleDownloadFile(dataInputStream, dataOutputStream, clientSocket);
@@ -107,17 +254,89 @@ public class FTPServerBackend {
             case "UPLOAD_FILE":
                 handleUploadFileToDirUser(dataInputStream, dataOutputStream, clientSocket);
                 break;
+            case "PASV_DOWNLOAD":
+                handlePassiveDownload(dataInputStream, dataOutputStream, clientSocket);
+                break;
+            case "PASV_UPLOAD":
+                handlePassiveUpload(dataInputStream, dataOutputStream, clientSocket);
+                break;
+            case "BATCH_UPLOAD":
+                handleBatchUpload(dataInputStream, dataOutputStream, clientSocket);
+                break;
+            case "DELTA_SIGNATURE":
+                handleDeltaSignature(dataInputStream, dataOutputStream);
+                break;
+            case "DELTA_UPLOAD":
+                handleDeltaUpload(dataInputStream, dataOutputStream, clientSocket);
+                break;
             case "DELETE_FILE_DIR_USER":
-                handleDeleteFileDirUser(dataInputStream, dataOutputStream);
+                handleDeleteFileDirUser(dataInputStream, dataOutputStream, clientSocket);
                 break;
             case "CREATE_NEW_DIR":
                 handleCreateNewDir(dataInputStream, dataOutputStream);
                 break;
             case "DELETE_DIR":
-                handleDeleteFolder(dataInputStream, dataOutputStream);
+                handleDeleteFolder(dataInputStream, dataOutputStream, clientSocket);
                 break;
             case "RENAME_DIR":
-                handleRenameFolder(dataInputStream, dataOutputStream);
+                handleRenameFolder(dataInputStream, dataOutputStream, clientSocket);
+                break;
+            case "DELETE_DIR_PROGRESS":
+                handleDeleteFolderWithProgress(dataInputStream, dataOutputStream, clientSocket);
+                break;
+            case "DIR_USAGE":
+                handleDirectoryUsage(dataInputStream, dataOutputStream);
+                break;
+            case "COPY_DIR":
+                handleCopyFolder(dataInputStream, dataOutputStream);
+                break;
+            case "DOWNLOAD_DIR_ARCHIVE":
+                handleDownloadFolderArchive(dataInputStream, dataOutputStream);
+                break;
+            case "SUBSCRIBE_DIR":
+                handleSubscribeDirectory(dataInputStream, dataOutputStream, clientSocket);
+                break;
+            case "SEARCH":
+                handleSearch(dataInputStream, dataOutputStream);
+                break;
+            case "GET_THUMBNAIL":
+                handleGetThumbnail(dataInputStream, dataOutputStream);
+                break;
+            case "CACHE_STATS":
+                handleCacheStats(dataOutputStream);
+                break;
+            case "DURABILITY_STATS":
+                handleDurabilityStats(dataOutputStream);
+                break;
+            case "AUTH_STATS":
+                handleAuthStats(dataOutputStream);
+                break;
+            case "BUFFER_POOL_STATS":
+                handleBufferPoolStats(dataOutputStream);
+                break;
+            case "SUBMIT_JOB":
+                handleSubmitJob(dataInputStream, dataOutputStream);
+                break;
+            case "JOB_STATUS":
+                handleJobStatus(dataInputStream, dataOutputStream);
+                break;
+            case "JOB_CANCEL":
+                handleJobCancel(dataInputStream, dataOutputStream);
+                break;
+            case "LIST_JOBS":
+                handleListJobs(dataInputStream, dataOutputStream);
+                break;
+            case "WHERE_IS_USER":
+                handleWhereIsUser(dataInputStream, dataOutputStream);
+                break;
+            case "CLUSTER_STATUS":
+                handleClusterStatus(dataOutputStream);
+                break;
+            case ClusterManager.OP_PUT:
+            case ClusterManager.OP_MKDIR:
+            case ClusterManager.OP_DELETE:
+            case ClusterManager.OP_RENAME:
+                handleReplicate(type, dataInputStream, dataOutputStream);
                 break;
             case "LOAD_CHILD_DIR_RECURSIVE":
                 break;
@@ -132,11 +351,10 @@ public class FTPServerBackend {
         serverGUI.appendToConsole(getCurrentTime() + "Receiving file: " + fileName
                 + "\nFrom: " + clientSocket.getInetAddress().getHostAddress());
 
-        byte[] fileData = FileHandler.receiveFileToMemoryDirectly(dataInputStream, dataOutputStream, fileName, serverGUI);
-        if (fileData != null) {
-            serverGUI.appendToConsole(getCurrentTime() + "File received. Saving to temp directory.");
-            File tempFile = new File(tempDirectory, fileName);
-            FileHandler.saveFileFromMemoryDirectly(fileData, tempFile, serverGUI);
+        long fileSize = dataInputStream.readLong();
+        if (FileHandler.receiveToStorage(dataInputStream, fileSize, new LocalFileStorage(tempDirectory), fileName,
+                serverGUI)) {
+            serverGUI.appendToConsole(getCurrentTime() + "File received and saved to temp directory.");
             serverGUI.addFileToList(fileName);
         }
     }
@@ -145,7 +363,20 @@ public class FTPServerBackend {
     private void handleAddUser(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket) throws IOException {
         String json = dataInputStream.readUTF();
         Connection_Model connection = new Gson().fromJson(json, Connection_Model.class);
-        connection.setPassword(hashPassword(connection.getPassword()));
+        String hashedPassword;
+        try {
+            hashedPassword = awaitPasswordWork(passwordService.hash(connection.getPassword()));
+        } catch (RejectedExecutionException e) {
+            hashedPassword = null;
+        }
+        if (hashedPassword == null) {
+            dataOutputStream.writeUTF("SERVER_BUSY");
+            dataOutputStream.flush();
+            serverGUI.appendToConsole(getCurrentTime() + "Password hashing busy, rejected new user: "
+                    + connection.getUsername() + "\n");
+            return;
+        }
+        connection.setPassword(hashedPassword);
         boolean userExists = saveConnectionToMySQL(connection);
         if (userExists) {
             dataOutputStream.writeUTF("USER_EXISTS");
@@ -160,29 +391,20 @@ public class FTPServerBackend {
         dataOutputStream.flush();
     }
 
-    private String hashPassword(String password) {
+    // Hashing runs on the password pool; the connection thread only waits for it.
+    private <T> T awaitPasswordWork(CompletableFuture<T> work) {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] encodedhash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
-            return bytesToHex(encodedhash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static String bytesToHex(byte[] hash) {
-        StringBuilder hexString = new StringBuilder(2 * hash.length);
-        for (int i = 0; i < hash.length; i++) {
-            String hex = Integer.toHexString(0xff & hash[i]);
-            if (hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
+            return work.get(PASSWORD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
         }
-        return hexString.toString();
     }
 
     private boolean saveConnectionToMySQL(Connection_Model connection) {
+        long dbStart = System.nanoTime();
         try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD); PreparedStatement checkStmt = conn.prepareStatement("SELECT COUNT(*) FROM connections WHERE username = ?"); PreparedStatement insertStmt = conn.prepareStatement("INSERT INTO connections"
                 + "(id, ip_address, port, username, password, email, creation_date) "
                 + "VALUES(?,?,?,?,?,?,?)")) {
@@ -205,8 +427,10 @@ public class FTPServerBackend {
             insertStmt.setString(7, currentDate);
             insertStmt.executeUpdate();
 
-            File userDirectory = new File("users_directories/" + connection.getUsername());
-            if (!userDirectory.exists()) {
+            File userDirectory = new File(USERS_DIRECTORY, connection.getUsername());
+            if (!clusterManager.isLocal(connection.getUsername())) {
+                clusterManager.createUserDirectory(connection.getUsername());
+            } else if (isLocalStorage() && !userDirectory.exists()) {
                 userDirectory.mkdirs();
             }
             serverGUI.appendToConsole(getCurrentTime() + "Connection data saved to database: " + connection.getUsername());
@@ -214,48 +438,125 @@ public class FTPServerBackend {
         } catch (SQLException e) {
             serverGUI.appendToConsole(getCurrentTime() + "SQL error saving connection: " + e.getMessage());
             return false;
+        } finally {
+            FtpEvents.addDatabaseTime(System.nanoTime() - dbStart);
         }
     }
 
     /*==================*/
  /*==================*/
-    private boolean queryExistingUser(Connection_Model exist_connection) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD); PreparedStatement checkStmt = conn.prepareStatement("SELECT COUNT(*) FROM connections WHERE "
-                + "username = ? AND password = ?")) {
-
-            String hashedPassword = hashPassword(exist_connection.getPassword());
-            checkStmt.setString(1, exist_connection.getUsername());
-            checkStmt.setString(2, hashedPassword);
-
-            ResultSet rs = checkStmt.executeQuery();
-            rs.next();
-            int count = rs.getInt(1);
-            return count > 0;
-
+    private String queryPasswordHash(String username) {
+        long dbStart = System.nanoTime();
+        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD); PreparedStatement checkStmt = conn.prepareStatement("SELECT password FROM connections WHERE "
+                + "username = ?")) {
+            checkStmt.setString(1, username);
+            try (ResultSet rs = checkStmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
         } catch (SQLException e) {
             serverGUI.appendToConsole(getCurrentTime() + "Error querying existing user in MySQL: " + e.getMessage() + "\n");
-            return false;
+            return null;
+        } finally {
+            FtpEvents.addDatabaseTime(System.nanoTime() - dbStart);
         }
     }
 
-    private void handleExistedConnection(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+    private void handleExistedConnection(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+            Socket clientSocket) throws IOException {
         String json = dataInputStream.readUTF();
         Connection_Model exist_connection = new Gson().fromJson(json, Connection_Model.class);
-        boolean userExists = queryExistingUser(exist_connection);
+        String username = exist_connection.getUsername();
         serverGUI.appendToConsole(getCurrentTime() + "Querying username from Client request");
 
-        if (userExists) {
+        if (!passwordService.tryAcquire(addressOf(clientSocket), username)) {
+            dataOutputStream.writeUTF("RATE_LIMITED");
+            dataOutputStream.flush();
+            serverGUI.appendToConsole(getCurrentTime() + "Too many login attempts: " + username + "\n");
+            return;
+        }
+
+        String storedPassword = queryPasswordHash(username);
+        Boolean valid;
+        try {
+            valid = awaitPasswordWork(passwordService.verify(exist_connection.getPassword(), storedPassword));
+        } catch (RejectedExecutionException e) {
+            valid = null;
+        }
+
+        if (valid == null) {
+            dataOutputStream.writeUTF("SERVER_BUSY");
+            serverGUI.appendToConsole(getCurrentTime() + "Password verification busy, rejected login: " + username + "\n");
+        } else if (valid && !clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            serverGUI.appendToConsole(getCurrentTime() + "User " + username + " redirected to "
+                    + clusterManager.primaryOf(username) + "\n");
+        } else if (valid) {
             dataOutputStream.writeUTF("EXIST_USER");
+            FtpEvents.setUser(username);
             serverGUI.appendToConsole(getCurrentTime() + "User exists in the database: "
-                    + exist_connection.getUsername() + "\n");
+                    + username + "\n");
+            if (PasswordHasher.needsRehash(storedPassword)) {
+                rehashPassword(username, storedPassword, exist_connection.getPassword());
+            }
         } else {
             dataOutputStream.writeUTF("INVALID_USER");
             serverGUI.appendToConsole(getCurrentTime() + "Invalid user or password: "
-                    + exist_connection.getUsername() + "\n");
+                    + username + "\n");
         }
         dataOutputStream.flush();
     }
 
+    // Upgrades a legacy or weaker hash in the background now that we know the plain password.
+    private void rehashPassword(String username, String oldHash, String password) {
+        try {
+            passwordService.hash(password).thenAcceptAsync(newHash -> {
+                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD); PreparedStatement updateStmt = conn.prepareStatement("UPDATE connections SET password = ? "
+                        + "WHERE username = ? AND password = ?")) {
+                    updateStmt.setString(1, newHash);
+                    updateStmt.setString(2, username);
+                    updateStmt.setString(3, oldHash);
+                    if (updateStmt.executeUpdate() > 0) {
+                        serverGUI.appendToConsole(getCurrentTime() + "Upgraded password hash for user: " + username + "\n");
+                    }
+                } catch (SQLException e) {
+                    serverGUI.appendToConsole(getCurrentTime() + "Error upgrading password hash: " + e.getMessage() + "\n");
+                }
+            }, threadPool);
+        } catch (RejectedExecutionException e) {
+            // Pool is saturated; the hash gets upgraded on a later login.
+        }
+    }
+
+    /*
+     * Salted hashes need a wider password column than the old SHA-256 digests.
+     * Startup only reads the schema; the ALTER runs when the server is started
+     * once with -Dftp.db.migrate=true, so schema changes stay an explicit step.
+     */
+    private void checkPasswordColumn() {
+        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            String definition = "VARCHAR(" + PASSWORD_COLUMN_SIZE + ")";
+            try (ResultSet columns = conn.getMetaData().getColumns(null, null, "connections", "password")) {
+                if (!columns.next() || columns.getInt("COLUMN_SIZE") >= PASSWORD_COLUMN_SIZE) {
+                    return;
+                }
+                if (columns.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls) {
+                    definition += " NOT NULL";
+                }
+            }
+            if (!Boolean.getBoolean("ftp.db.migrate")) {
+                serverGUI.appendToConsole(getCurrentTime() + "connections.password is too narrow for salted hashes;"
+                        + " restart once with -Dftp.db.migrate=true to widen it to " + definition + "\n");
+                return;
+            }
+            try (Statement statement = conn.createStatement()) {
+                statement.executeUpdate("ALTER TABLE connections MODIFY password " + definition);
+            }
+            serverGUI.appendToConsole(getCurrentTime() + "Widened connections.password to " + definition + "\n");
+        } catch (SQLException e) {
+            serverGUI.appendToConsole(getCurrentTime() + "Could not check password column: " + e.getMessage() + "\n");
+        }
+    }
+
     /*==================*/
     private void handleReloadServer(Socket clientSocket) {
         serverGUI.appendToConsole(getCurrentTime() + "Client requested to reload server: "
@@ -269,14 +570,34 @@ public class FTPServerBackend {
             String newFileName = dataInputStream.readUTF();
 
             File currentFile = new File(currentFilePath);
+            String owner = ownerOf(currentFile);
+            if (!clusterManager.isLocal(owner)) {
+                writeRedirect(owner, dataOutputStream);
+                return;
+            }
+
+            String key = storageKeyOf(currentFilePath);
+            StorageEntry entry = key == null ? null : statOrNull(key);
+            long start = System.nanoTime();
 
-            if (currentFile.exists() && currentFile.isFile()) {
+            if (entry != null && !entry.isDirectory()) {
                 String parentDir = currentFile.getParent();
                 File newFile = new File(parentDir, newFileName);
+                String newKey = key.substring(0, key.lastIndexOf('/') + 1) + newFileName;
 
-                boolean renameSuccess = currentFile.renameTo(newFile);
+                boolean renameSuccess;
+                try {
+                    renameSuccess = storage.rename(key, newKey);
+                } catch (IllegalArgumentException e) {
+                    renameSuccess = false;
+                }
+                auditLog.record(AuditEvent.OP_RENAME, currentFile, newFile, 0, start,
+                        renameSuccess ? AuditEvent.RESULT_SUCCESS : AuditEvent.RESULT_FAILED, addressOf(clientSocket));
 
                 if (renameSuccess) {
+                    if (storage.localFile(key) != null) {
+                        pathChanges.renamed(currentFile, newFile);
+                    }
                     dataOutputStream.writeUTF("RENAME_SUCCESS");
                     serverGUI.appendToConsole(getCurrentTime() + "User changed file name: " + currentFile.getName() + " -> " + newFileName);
                 } else {
@@ -296,13 +617,28 @@ public class FTPServerBackend {
         }
     }
 
-    private void handleDeleteFileDirUser(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+    private void handleDeleteFileDirUser(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
         String filePath = dataInputStream.readUTF();
         File fileToDelete = new File(filePath);
-
-        if (fileToDelete.exists()) {
-            boolean deleteSuccess = fileToDelete.delete();
+        String owner = ownerOf(fileToDelete);
+        if (!clusterManager.isLocal(owner)) {
+            writeRedirect(owner, dataOutputStream);
+            return;
+        }
+        String key = storageKeyOf(filePath);
+        StorageEntry entry = key == null ? null : statOrNull(key);
+        long start = System.nanoTime();
+
+        if (entry != null) {
+            long size = entry.getSize();
+            boolean deleteSuccess = storage.delete(key);
+            auditLog.record(AuditEvent.OP_DELETE, fileToDelete, null, deleteSuccess ? size : 0, start,
+                    deleteSuccess ? AuditEvent.RESULT_SUCCESS : AuditEvent.RESULT_FAILED, addressOf(clientSocket));
             if (deleteSuccess) {
+                if (storage.localFile(key) != null) {
+                    pathChanges.deleted(fileToDelete);
+                }
                 dataOutputStream.writeUTF("DELETE_SUCCESS");
                 serverGUI.appendToConsole(getCurrentTime() + "Deleted file or directory: " + filePath);
             } else {
@@ -319,11 +655,17 @@ public class FTPServerBackend {
         String parentDirName = dataInputStream.readUTF();
         String newDirName = dataInputStream.readUTF();
 
-        File parentDir = new File("users_directories/" + parentDirName);
+        File parentDir = new File(USERS_DIRECTORY, parentDirName);
         File newDir = new File(parentDir, newDirName);
+        String owner = ownerOf(parentDir);
+        if (!clusterManager.isLocal(owner)) {
+            writeRedirect(owner, dataOutputStream);
+            return;
+        }
 
         if (parentDir.exists() && parentDir.isDirectory()) {
             if (newDir.mkdir()) {
+                pathChanges.created(newDir);
                 dataOutputStream.writeUTF("CREATE_SUCCESS");
                 serverGUI.appendToConsole(getCurrentTime() + "Directory created successfully: " + newDir);
             } else {
@@ -344,21 +686,45 @@ public class FTPServerBackend {
         String json = dataInputStream.readUTF();
         Connection_Model connection = new Gson().fromJson(json, Connection_Model.class);
         String username = connection.getUsername();
+        FtpEvents.setUser(username);
 
         serverGUI.appendToConsole(getCurrentTime() + "Client requested download: " + fileName
                 + " - From user: " + username);
 
-        String userDirectoryPath = "users_directories/" + username;
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        String userDirectoryPath = USERS_DIRECTORY + "/" + username;
         File userDirectory = new File(userDirectoryPath);
         File fileToSend = new File(userDirectory, fileName);
+        String key = username + "/" + fileName;
+        long start = System.nanoTime();
+        StorageEntry entry = statOrNull(key);
 
-        if (fileToSend.exists() && fileToSend.isFile()) {
+        if (entry != null && !entry.isDirectory()) {
             serverGUI.appendToConsole(getCurrentTime() + "File found. Sending to client.");
 
             dataOutputStream.writeUTF("FILE_FOUND");
-            FileHandler.sendFile(dataOutputStream, fileToSend, serverGUI);
+            String result = AuditEvent.RESULT_FAILED;
+            try {
+                File localFile = storage.localFile(key);
+                if (localFile != null) {
+                    FileHandler.sendFile(dataOutputStream, localFile, serverGUI, hotFileCache);
+                } else {
+                    try (ReadableByteChannel channel = storage.openRead(key)) {
+                        FileHandler.sendChannel(dataOutputStream, channel, entry.getSize(), fileName, serverGUI);
+                    }
+                }
+                result = AuditEvent.RESULT_SUCCESS;
+            } finally {
+                auditLog.record(AuditEvent.OP_DOWNLOAD, fileToSend, null, entry.getSize(), start, result,
+                        addressOf(clientSocket));
+            }
         } else {
             serverGUI.appendToConsole(getCurrentTime() + "File not found: " + fileName);
+            auditLog.record(AuditEvent.OP_DOWNLOAD, fileToSend, null, 0, start, AuditEvent.RESULT_NOT_FOUND,
+                    addressOf(clientSocket));
         }
         dataOutputStream.flush();
     }
@@ -368,50 +734,266 @@ public class FTPServerBackend {
         String fileName = dataInputStream.readUTF();
         String username = dataInputStream.readUTF();
         Long filesize = dataInputStream.readLong();
+        FtpEvents.setUser(username);
 
         serverGUI.appendToConsole(getCurrentTime() + "Receiving file: " + fileName
                 + "\nFrom user: " + username);
 
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
         dataOutputStream.writeUTF("READY_TO_RECEIVE");
         dataOutputStream.flush();
 
-        byte[] fileData = FileHandler.receiveFileToMemoryViaFolder(dataInputStream, dataOutputStream, fileName, serverGUI, filesize);
-        if (fileData != null) {
-            String userDirectoryPath = "users_directories/" + username;
-            File userDirectory = new File(userDirectoryPath);
-            if (!userDirectory.exists()) {
-                userDirectory.mkdirs();
+        long start = System.nanoTime();
+        String userDirectoryPath = USERS_DIRECTORY + "/" + username;
+        File userDirectory = new File(userDirectoryPath);
+        File userFile = new File(userDirectory, fileName);
+        String key = username + "/" + fileName;
+        boolean replacing = statOrNull(key) != null;
+        boolean saved;
+        try {
+            saved = FileHandler.receiveToStorage(dataInputStream, filesize, storage, key, serverGUI);
+        } catch (IOException e) {
+            auditLog.record(AuditEvent.OP_UPLOAD, userFile, null, 0, start, AuditEvent.RESULT_FAILED,
+                    addressOf(clientSocket));
+            throw e;
+        }
+        if (saved && storage.localFile(key) != null) {
+            if (replacing) {
+                pathChanges.modified(userFile);
+            } else {
+                pathChanges.created(userFile);
+            }
+        }
+        serverGUI.appendToConsole(getCurrentTime() + (saved ? "File received and saved to: " : "File received but not saved: ")
+                + userFile);
+        auditLog.record(AuditEvent.OP_UPLOAD, userFile, null, saved ? filesize : 0, start,
+                saved ? AuditEvent.RESULT_SUCCESS : AuditEvent.RESULT_FAILED, addressOf(clientSocket));
+
+        dataOutputStream.writeUTF(saved ? "UPLOAD_SUCCESS" : "UPLOAD_FAILED");
+        dataOutputStream.flush();
+    }
+
+    private void handleBatchUpload(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
+        String username = dataInputStream.readUTF();
+        // The manifest can exceed the 64 KB writeUTF limit, so it is sent as length-prefixed UTF-8.
+        int manifestLength = dataInputStream.readInt();
+        if (manifestLength <= 0 || manifestLength > MAX_MANIFEST_BYTES) {
+            throw new IOException("Invalid batch manifest length: " + manifestLength);
+        }
+        byte[] manifestBytes = new byte[manifestLength];
+        dataInputStream.readFully(manifestBytes);
+
+        List<BatchUploadReceiver.Entry> manifest;
+        try {
+            manifest = new Gson().fromJson(new String(manifestBytes, StandardCharsets.UTF_8),
+                    new TypeToken<List<BatchUploadReceiver.Entry>>() {
+                    }.getType());
+        } catch (RuntimeException e) {
+            manifest = null;
+        }
+
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        File userDirectory = new File(USERS_DIRECTORY, username);
+        BatchUploadReceiver receiver = new BatchUploadReceiver(userDirectory, manifest);
+        if (!userDirectory.isDirectory() || !receiver.isValidManifest()) {
+            dataOutputStream.writeUTF("INVALID_MANIFEST");
+            dataOutputStream.flush();
+            return;
+        }
+
+        serverGUI.appendToConsole(getCurrentTime() + "Receiving batch of " + manifest.size() + " files"
+                + "\nFrom user: " + username);
+        dataOutputStream.writeUTF("READY_TO_RECEIVE");
+        dataOutputStream.flush();
+
+        long start = System.nanoTime();
+        TreeResult result;
+        try {
+            result = receiver.receive(dataInputStream);
+        } finally {
+            // Only files that were actually committed, even if the connection dropped part way.
+            for (File file : receiver.getCreated()) {
+                pathChanges.created(file);
+            }
+            for (File file : receiver.getModified()) {
+                pathChanges.modified(file);
             }
-            File userFile = new File(userDirectory, fileName);
-            FileHandler.saveFileFromMemoryViaFolder(fileData, userFile, serverGUI);
-            serverGUI.appendToConsole(getCurrentTime() + "File received and saved to: " + userFile);
+        }
+        auditLog.record(AuditEvent.OP_UPLOAD, userDirectory, null, result.getBytes(), start,
+                result.isSuccess() ? AuditEvent.RESULT_SUCCESS : AuditEvent.RESULT_FAILED, addressOf(clientSocket));
+        dataOutputStream.writeUTF("BATCH_UPLOAD_RESULT");
+        dataOutputStream.writeUTF(new Gson().toJson(result));
+        dataOutputStream.flush();
+        serverGUI.appendToConsole(getCurrentTime() + "Batch upload saved to: " + userDirectory
+                + " (" + result.getFiles() + " files, " + result.getFailed() + " failed)");
+    }
+
+    private void handlePassiveDownload(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
+        String username = dataInputStream.readUTF();
+        String fileName = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        File userFile = new File(new File(USERS_DIRECTORY, username), fileName);
+        if (!userFile.isFile() || !isInsideUsersDirectory(userFile)) {
+            dataOutputStream.writeUTF("FILE_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+        String ticket = passiveDataServer.isAvailable()
+                ? passiveDataServer.offerDownload(userFile, clientSocket.getInetAddress()) : null;
+        writePassiveReply(ticket, dataOutputStream);
+        serverGUI.appendToConsole(getCurrentTime() + "Client requested passive download: " + fileName
+                + " - From user: " + username);
+    }
 
-            dataOutputStream.writeUTF("UPLOAD_SUCCESS");
+    private void handlePassiveUpload(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
+        String username = dataInputStream.readUTF();
+        String fileName = dataInputStream.readUTF();
+        long fileSize = dataInputStream.readLong();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        File userFile = new File(new File(USERS_DIRECTORY, username), fileName);
+        if (fileSize < 0 || userFile.isDirectory() || !isInsideUsersDirectory(userFile)) {
+            dataOutputStream.writeUTF("INVALID_UPLOAD");
             dataOutputStream.flush();
+            return;
+        }
+        String ticket = passiveDataServer.isAvailable()
+                ? passiveDataServer.offerUpload(userFile, fileSize, clientSocket.getInetAddress()) : null;
+        writePassiveReply(ticket, dataOutputStream);
+        serverGUI.appendToConsole(getCurrentTime() + "Client requested passive upload: " + fileName
+                + " - From user: " + username);
+    }
+
+    private void writePassiveReply(String ticket, DataOutputStream dataOutputStream) throws IOException {
+        if (ticket == null) {
+            dataOutputStream.writeUTF("PASV_UNAVAILABLE");
         } else {
-            //
+            dataOutputStream.writeUTF("PASV_READY");
+            dataOutputStream.writeInt(passiveDataServer.getPort());
+            dataOutputStream.writeUTF(ticket);
+        }
+        dataOutputStream.flush();
+    }
+
+    private void handleDeltaSignature(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String username = dataInputStream.readUTF();
+        String fileName = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        File userFile = new File(new File(USERS_DIRECTORY, username), fileName);
+        if (!userFile.isFile() || !isInsideUsersDirectory(userFile)) {
+            dataOutputStream.writeUTF("FILE_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+
+        DeltaSync.Signature signature = deltaSync.getSignature(userFile);
+        dataOutputStream.writeUTF("SIGNATURE");
+        DeltaSync.writeSignature(signature, dataOutputStream);
+        dataOutputStream.flush();
+        serverGUI.appendToConsole(getCurrentTime() + "Sent block signatures for: " + fileName + " ("
+                + signature.getBlockCount() + " blocks) - From user: " + username);
+    }
+
+    private void handleDeltaUpload(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
+        String username = dataInputStream.readUTF();
+        String fileName = dataInputStream.readUTF();
+        long basisLength = dataInputStream.readLong();
+        long basisLastModified = dataInputStream.readLong();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+
+        File userFile = new File(new File(USERS_DIRECTORY, username), fileName);
+        if (!userFile.isFile() || !isInsideUsersDirectory(userFile)) {
+            dataOutputStream.writeUTF("FILE_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+        DeltaSync.Signature basis = deltaSync.getSignature(userFile);
+        if (basis.getLength() != basisLength || basis.getLastModified() != basisLastModified) {
+            dataOutputStream.writeUTF("BASIS_CHANGED");
+            dataOutputStream.flush();
+            return;
+        }
+
+        dataOutputStream.writeUTF("READY_TO_RECEIVE");
+        dataOutputStream.flush();
+
+        long start = System.nanoTime();
+        DeltaSync.Result result = deltaSync.apply(userFile, basis, dataInputStream);
+        auditLog.record(AuditEvent.OP_UPLOAD, userFile, null, result == null ? 0 : userFile.length(), start,
+                result == null ? AuditEvent.RESULT_FAILED : AuditEvent.RESULT_SUCCESS, addressOf(clientSocket));
+        if (result != null) {
+            pathChanges.modified(userFile);
+            dataOutputStream.writeUTF("DELTA_SUCCESS");
+            dataOutputStream.writeUTF(new Gson().toJson(result));
+            serverGUI.appendToConsole(getCurrentTime() + "Delta upload applied to: " + userFile
+                    + " - From user: " + username);
+        } else {
+            dataOutputStream.writeUTF("DELTA_FAILED");
+            serverGUI.appendToConsole(getCurrentTime() + "Delta upload failed checksum: " + userFile);
         }
+        dataOutputStream.flush();
     }
 
     private void handleLoadDirectory(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
             throws IOException {
         String username = dataInputStream.readUTF();
+        FtpEvents.setUser(username);
         serverGUI.appendToConsole(getCurrentTime() + "User: " + username + " open directory");
+        if (!clusterManager.isLocal(username)) {
+            // Status 2: the listing lives on another node, followed by its host and port.
+            ClusterNode primary = clusterManager.primaryOf(username);
+            dataOutputStream.writeInt(2);
+            dataOutputStream.writeUTF(primary.getHost());
+            dataOutputStream.writeInt(primary.getPort());
+            dataOutputStream.flush();
+            return;
+        }
         sendDirectoryListToClient(username, dataOutputStream);
     }
 
     private void sendDirectoryListToClient(String username, DataOutputStream dataOutputStream) throws IOException {
-        File userDirectory = new File("users_directories/" + username);
-        if (userDirectory.exists() && userDirectory.isDirectory()) {
-            File[] files = userDirectory.listFiles();
-            if (files != null) {
+        List<StorageEntry> entries;
+        boolean exists = true;
+        try {
+            entries = storage.list(username);
+        } catch (NoSuchFileException | IllegalArgumentException e) {
+            entries = null;
+            exists = false;
+        } catch (IOException e) {
+            entries = null;
+            serverGUI.appendToConsole(getCurrentTime() + "Error listing directory: " + e.getMessage() + "\n");
+        }
+        if (exists) {
+            if (entries != null) {
                 dataOutputStream.writeInt(0);
 
                 ArrayList<FileModel> fileModels = new ArrayList<>();
-                for (File file : files) {
-                    String filePath = file.getPath().replace("\\", "/");
-                    FileModel fileModel = new FileModel(file.getName(), file.isDirectory()
-                            ? FileModel.TYPE_DIRECTORY : FileModel.TYPE_FILE, filePath);
+                for (StorageEntry entry : entries) {
+                    String filePath = USERS_DIRECTORY.replace("\\", "/") + "/" + entry.getPath();
+                    String fileType = entry.isDirectory() ? FileModel.TYPE_DIRECTORY
+                            : ThumbnailService.isImage(entry.getName()) ? FileModel.TYPE_IMAGE : FileModel.TYPE_FILE;
+                    FileModel fileModel = new FileModel(entry.getName(), fileType, filePath);
                     fileModels.add(fileModel);
                 }
                 dataOutputStream.writeUTF(new Gson().toJson(fileModels));
@@ -427,6 +1009,26 @@ public class FTPServerBackend {
         dataOutputStream.flush();
     }
 
+    // Null for paths the storage rejects, such as ones climbing out of the users directory.
+    private StorageEntry statOrNull(String key) throws IOException {
+        try {
+            return storage.stat(key);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Clients address files by the path we listed for them ("users_directories/alice/a.txt").
+    private static String storageKeyOf(String clientPath) {
+        String root = USERS_DIRECTORY.replace("\\", "/") + "/";
+        String path = clientPath.replace("\\", "/");
+        return path.startsWith(root) && path.length() > root.length() ? path.substring(root.length()) : null;
+    }
+
+    private static String addressOf(Socket clientSocket) {
+        return clientSocket == null ? null : clientSocket.getInetAddress().getHostAddress();
+    }
+
     private String getCurrentTime() {
         return new SimpleDateFormat("[dd/MM/yyyy - hh:mm:ss]: ").format(new Date());
     }
@@ -435,6 +1037,13 @@ public class FTPServerBackend {
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
+                jobScheduler.shutdown();
+                changeNotifier.shutdown();
+                thumbnailService.shutdown();
+                passiveDataServer.shutdown();
+                clusterManager.shutdown();
+                passwordService.shutdown();
+                auditLog.shutdown();
                 serverGUI.appendToConsole(getCurrentTime() + "Server stopped.\n");
             }
         } catch (IOException e) {
@@ -442,20 +1051,33 @@ public class FTPServerBackend {
         }
     }
 
-    private void handleDeleteFolder(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+    private void handleDeleteFolder(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
         try {
             String folderPath = dataInputStream.readUTF();
 
             File folder = new File(folderPath);
+            String owner = ownerOf(folder);
+            if (!clusterManager.isLocal(owner)) {
+                writeRedirect(owner, dataOutputStream);
+                return;
+            }
 
-            if (folder.exists() && folder.isDirectory()) {
-                boolean deleteSuccess = deleteDirectory(folder);
+            long start = System.nanoTime();
+            if (folder.isDirectory() && isInsideUsersDirectory(folder)) {
+                TreeResult result = TreeOperations.delete(folder.toPath());
+                folderDeleted(folder);
+                auditLog.record(AuditEvent.OP_DELETE, folder, null, result.getBytes(), start, deleteResult(result),
+                        addressOf(clientSocket));
 
-                if (deleteSuccess) {
+                if (result.isSuccess()) {
                     dataOutputStream.writeUTF("DELETE_SUCCESS");
-                    serverGUI.appendToConsole(getCurrentTime() + "User deleted folder: " + folder.getName());
+                    serverGUI.appendToConsole(getCurrentTime() + "User deleted folder: " + folder.getName()
+                            + " (" + result.getFiles() + " files)");
                 } else {
                     dataOutputStream.writeUTF("DELETE_FAILED");
+                    serverGUI.appendToConsole(getCurrentTime() + "Failed to delete folder: " + folder.getName()
+                            + " (" + result.getFailed() + " entries could not be removed)");
                 }
             } else {
                 dataOutputStream.writeUTF("FOLDER_NOT_FOUND");
@@ -467,36 +1089,544 @@ public class FTPServerBackend {
         }
     }
 
-    private boolean deleteDirectory(File directory) {
-        if (directory.isDirectory()) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
+    private void handleDeleteFolderWithProgress(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+            Socket clientSocket) throws IOException {
+        File folder = new File(dataInputStream.readUTF());
+        String owner = ownerOf(folder);
+        if (!clusterManager.isLocal(owner)) {
+            writeRedirect(owner, dataOutputStream);
+            return;
+        }
+        if (!folder.isDirectory() || !isInsideUsersDirectory(folder)) {
+            dataOutputStream.writeUTF("FOLDER_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+
+        long start = System.nanoTime();
+        TreeOperations.Progress progress = new TreeOperations.Progress(TreeResult.OP_DELETE);
+        TreeResult result = awaitTreeOperation(TreeOperations.submitDelete(folder.toPath(), progress),
+                progress, dataOutputStream);
+        folderDeleted(folder);
+        auditLog.record(AuditEvent.OP_DELETE, folder, null, result.getBytes(), start, deleteResult(result),
+                addressOf(clientSocket));
+
+        dataOutputStream.writeUTF(result.isSuccess() ? "DELETE_SUCCESS" : "DELETE_PARTIAL");
+        dataOutputStream.writeUTF(new Gson().toJson(result));
+        dataOutputStream.flush();
+        serverGUI.appendToConsole(getCurrentTime() + "User deleted folder: " + folder.getName()
+                + " (" + result.getFiles() + " files, " + result.getFailed() + " failed)");
+    }
+
+    /*
+     * A partial delete has still removed files. Listeners drop the whole
+     * subtree, then whatever survived is announced again, so indexes, caches
+     * and the replica end up matching the disk either way.
+     */
+    private void folderDeleted(File folder) {
+        pathChanges.deleted(folder);
+        if (folder.exists()) {
+            pathChanges.created(folder);
+        }
+    }
+
+    private static String deleteResult(TreeResult result) {
+        if (result.isSuccess()) {
+            return AuditEvent.RESULT_SUCCESS;
+        }
+        return result.getFiles() + result.getDirectories() > 0 ? AuditEvent.RESULT_PARTIAL : AuditEvent.RESULT_FAILED;
+    }
+
+    private void handleDirectoryUsage(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        File folder = new File(dataInputStream.readUTF());
+        String owner = ownerOf(folder);
+        if (!clusterManager.isLocal(owner)) {
+            writeRedirect(owner, dataOutputStream);
+            return;
+        }
+        if (!folder.isDirectory() || !isInsideUsersDirectory(folder)) {
+            dataOutputStream.writeUTF("FOLDER_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+
+        TreeOperations.Progress progress = new TreeOperations.Progress(TreeResult.OP_SIZE);
+        TreeResult result = awaitTreeOperation(TreeOperations.submitSize(folder.toPath(), progress),
+                progress, dataOutputStream);
+
+        dataOutputStream.writeUTF("USAGE_RESULT");
+        dataOutputStream.writeUTF(new Gson().toJson(result));
+        dataOutputStream.flush();
+    }
+
+    private void handleCopyFolder(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        File source = new File(dataInputStream.readUTF());
+        File target = new File(dataInputStream.readUTF());
+        String owner = ownerOf(source);
+        if (!clusterManager.isLocal(owner)) {
+            writeRedirect(owner, dataOutputStream);
+            return;
+        }
+        if (!source.isDirectory() || !isInsideUsersDirectory(source) || !isInsideUsersDirectory(target)) {
+            dataOutputStream.writeUTF("FOLDER_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+        if (target.exists()) {
+            dataOutputStream.writeUTF("TARGET_EXISTS");
+            dataOutputStream.flush();
+            return;
+        }
+        if (TreeOperations.isInside(target.toPath(), source.toPath())) {
+            dataOutputStream.writeUTF("INVALID_TARGET");
+            dataOutputStream.flush();
+            return;
+        }
+
+        TreeOperations.Progress progress = new TreeOperations.Progress(TreeResult.OP_COPY);
+        TreeResult result = awaitTreeOperation(TreeOperations.submitCopy(source.toPath(), target.toPath(), progress),
+                progress, dataOutputStream);
+        pathChanges.created(target);
+
+        dataOutputStream.writeUTF(result.isSuccess() ? "COPY_SUCCESS" : "COPY_PARTIAL");
+        dataOutputStream.writeUTF(new Gson().toJson(result));
+        dataOutputStream.flush();
+        serverGUI.appendToConsole(getCurrentTime() + "User copied folder: " + source.getName() + " -> " + target.getName()
+                + " (" + result.getFiles() + " files, " + result.getFailed() + " failed)");
+    }
+
+    private void handleDownloadFolderArchive(DataInputStream dataInputStream, DataOutputStream dataOutputStream)
+            throws IOException {
+        File folder = new File(dataInputStream.readUTF());
+        String format = dataInputStream.readUTF();
+        String owner = ownerOf(folder);
+        if (!clusterManager.isLocal(owner)) {
+            writeRedirect(owner, dataOutputStream);
+            return;
+        }
+        if (!folder.isDirectory() || !isInsideUsersDirectory(folder)) {
+            dataOutputStream.writeUTF("FOLDER_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+        if (!ArchiveStreamer.isSupportedFormat(format)) {
+            dataOutputStream.writeUTF("UNSUPPORTED_FORMAT");
+            dataOutputStream.flush();
+            return;
+        }
+
+        serverGUI.appendToConsole(getCurrentTime() + "Streaming folder as " + format + ": " + folder.getName());
+        dataOutputStream.writeUTF("ARCHIVE_STREAM");
+        TreeResult result;
+        try {
+            result = new ArchiveStreamer(folder.toPath(), format).writeTo(new ChunkedOutputStream(dataOutputStream));
+        } catch (ArchiveStreamer.AbortException e) {
+            // The chunk stream was ended, so the client can still be told to discard what it received.
+            dataOutputStream.writeUTF("ARCHIVE_FAILED");
+            dataOutputStream.writeUTF(String.valueOf(e.getMessage()));
+            dataOutputStream.flush();
+            serverGUI.appendToConsole(getCurrentTime() + "Folder archive aborted: " + folder.getName() + " - "
+                    + e.getMessage());
+            return;
+        }
+
+        dataOutputStream.writeUTF("ARCHIVE_COMPLETE");
+        dataOutputStream.writeUTF(new Gson().toJson(result));
+        dataOutputStream.flush();
+        serverGUI.appendToConsole(getCurrentTime() + "Folder archive sent: " + folder.getName()
+                + " (" + result.getFiles() + " files, " + result.getFailed() + " skipped)");
+    }
+
+    private void handleSubmitJob(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        JobModel job = new Gson().fromJson(dataInputStream.readUTF(), JobModel.class);
+        if (job != null && !clusterManager.isLocal(job.getUsername())) {
+            writeRedirect(job.getUsername(), dataOutputStream);
+            return;
+        }
+        if (!isValidJob(job)) {
+            dataOutputStream.writeUTF("INVALID_JOB");
+            dataOutputStream.flush();
+            return;
+        }
+
+        JobModel accepted = jobScheduler.submit(job);
+        if (accepted != null) {
+            dataOutputStream.writeUTF("JOB_ACCEPTED");
+            dataOutputStream.writeUTF(accepted.getId());
+            serverGUI.appendToConsole(getCurrentTime() + "Queued job " + job.getType() + ": " + job.getSource()
+                    + " - From user: " + job.getUsername());
+        } else {
+            dataOutputStream.writeUTF("JOB_REJECTED");
+        }
+        dataOutputStream.flush();
+    }
+
+    private boolean isValidJob(JobModel job) {
+        if (job == null || job.getUsername() == null || job.getType() == null || job.getSource() == null) {
+            return false;
+        }
+        File userDirectory = new File(USERS_DIRECTORY, job.getUsername());
+        if (!userDirectory.getName().equals(job.getUsername()) || job.getUsername().startsWith(".")) {
+            return false;
+        }
+        File source = new File(job.getSource());
+        if (!source.exists() || !isInsideUsersDirectory(source)
+                || !TreeOperations.isInside(source.toPath(), userDirectory.toPath())) {
+            return false;
+        }
+        switch (job.getType()) {
+            case JobModel.TYPE_DELETE_DIR:
+                return source.isDirectory();
+            case JobModel.TYPE_COPY_DIR:
+            case JobModel.TYPE_MOVE:
+                if (job.getTarget() == null) {
+                    return false;
+                }
+                File target = new File(job.getTarget());
+                return !target.exists() && isInsideUsersDirectory(target)
+                        && TreeOperations.isInside(target.toPath(), userDirectory.toPath())
+                        && !TreeOperations.isInside(target.toPath(), source.toPath())
+                        && (source.isDirectory() || JobModel.TYPE_MOVE.equals(job.getType()));
+            default:
+                return false;
+        }
+    }
+
+    private void handleJobStatus(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String jobId = dataInputStream.readUTF();
+        String username = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        JobModel job = jobScheduler.getJob(jobId, username);
+        if (job != null) {
+            dataOutputStream.writeUTF("JOB_FOUND");
+            dataOutputStream.writeUTF(new Gson().toJson(job));
+        } else {
+            dataOutputStream.writeUTF("JOB_NOT_FOUND");
+        }
+        dataOutputStream.flush();
+    }
+
+    private void handleJobCancel(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String jobId = dataInputStream.readUTF();
+        String username = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        if (jobScheduler.cancel(jobId, username)) {
+            dataOutputStream.writeUTF("JOB_CANCELLED");
+            serverGUI.appendToConsole(getCurrentTime() + "Cancelled job: " + jobId);
+        } else {
+            dataOutputStream.writeUTF("JOB_NOT_FOUND");
+        }
+        dataOutputStream.flush();
+    }
+
+    private void handleListJobs(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String username = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        dataOutputStream.writeUTF(new Gson().toJson(jobScheduler.getJobsForUser(username)));
+        dataOutputStream.flush();
+    }
+
+    private TreeResult awaitTreeOperation(ForkJoinTask<TreeResult> task, TreeOperations.Progress progress,
+            DataOutputStream dataOutputStream) throws IOException {
+        while (true) {
+            try {
+                return task.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                try {
+                    dataOutputStream.writeUTF("PROGRESS");
+                    dataOutputStream.writeUTF(new Gson().toJson(progress.snapshot()));
+                    dataOutputStream.flush();
+                } catch (IOException clientGone) {
+                    // Nobody is waiting for the result any more; stop the walk.
+                    progress.cancel();
+                    task.cancel(false);
+                    throw clientGone;
+                }
+            } catch (InterruptedException e) {
+                progress.cancel();
+                Thread.currentThread().interrupt();
+                return progress.snapshot();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private void handleSubscribeDirectory(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+            Socket clientSocket) throws IOException {
+        String username = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        File userDirectory = new File(USERS_DIRECTORY, username);
+        if (!userDirectory.isDirectory() || !isInsideUsersDirectory(userDirectory)) {
+            dataOutputStream.writeUTF("USER_DIRECTORY_NOT_FOUND");
+            dataOutputStream.flush();
+            return;
+        }
+        serverGUI.appendToConsole(getCurrentTime() + "User: " + username + " subscribed to directory changes from "
+                + clientSocket.getInetAddress().getHostAddress());
+        changeNotifier.subscribe(username, dataOutputStream);
+    }
+
+    private void handleSearch(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        SearchQuery query;
+        try {
+            query = new Gson().fromJson(dataInputStream.readUTF(), SearchQuery.class);
+        } catch (RuntimeException e) {
+            query = null;
+        }
+        if (query != null && query.getUsername() != null && !clusterManager.isLocal(query.getUsername())) {
+            writeRedirect(query.getUsername(), dataOutputStream);
+            return;
+        }
+        SearchIndex.SearchResult result;
+        try {
+            result = query == null || query.getUsername() == null ? null : searchIndex.search(query);
+        } catch (RuntimeException e) {
+            result = null;
+        }
+        if (result == null) {
+            dataOutputStream.writeUTF("INVALID_QUERY");
+            dataOutputStream.flush();
+            return;
+        }
+
+        dataOutputStream.writeUTF("SEARCH_RESULT");
+        // A page of results can exceed the 64 KB writeUTF limit, so send it length-prefixed.
+        byte[] json = new Gson().toJson(result).getBytes(StandardCharsets.UTF_8);
+        dataOutputStream.writeInt(json.length);
+        dataOutputStream.write(json);
+        dataOutputStream.flush();
+    }
+
+    private void handleGetThumbnail(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String username = dataInputStream.readUTF();
+        String fileName = dataInputStream.readUTF();
+        if (!clusterManager.isLocal(username)) {
+            writeRedirect(username, dataOutputStream);
+            return;
+        }
+        File userFile = new File(new File(USERS_DIRECTORY, username), fileName);
+        byte[] thumbnail = null;
+        if (userFile.isFile() && ThumbnailService.isImage(userFile.getName()) && isInsideUsersDirectory(userFile)) {
+            thumbnail = thumbnailService.getThumbnail(userFile);
+        }
+        if (thumbnail == null) {
+            dataOutputStream.writeUTF("THUMBNAIL_NOT_AVAILABLE");
+            dataOutputStream.flush();
+            return;
+        }
+
+        dataOutputStream.writeUTF("THUMBNAIL_FOUND");
+        dataOutputStream.writeLong(thumbnail.length);
+        dataOutputStream.write(thumbnail);
+        dataOutputStream.flush();
+    }
+
+    private void handleCacheStats(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeUTF(new Gson().toJson(hotFileCache.getStats()));
+        dataOutputStream.flush();
+    }
+
+    private void handleDurabilityStats(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeUTF(new Gson().toJson(Durability.getStats()));
+        dataOutputStream.flush();
+    }
+
+    private void handleAuthStats(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeUTF(new Gson().toJson(passwordService.getStats()));
+        dataOutputStream.flush();
+    }
+
+    private void handleBufferPoolStats(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeUTF(new Gson().toJson(BufferPool.getStats()));
+        dataOutputStream.flush();
+    }
+
+    private void writeRedirect(String username, DataOutputStream dataOutputStream) throws IOException {
+        ClusterNode primary = clusterManager.primaryOf(username);
+        dataOutputStream.writeUTF("REDIRECT");
+        dataOutputStream.writeUTF(primary.getHost());
+        dataOutputStream.writeInt(primary.getPort());
+        dataOutputStream.flush();
+    }
+
+    private void handleWhereIsUser(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String username = dataInputStream.readUTF();
+        dataOutputStream.writeUTF("USER_LOCATION");
+        dataOutputStream.writeUTF(new Gson().toJson(clusterManager.primaryOf(username)));
+        dataOutputStream.flush();
+    }
+
+    private void handleClusterStatus(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeUTF(new Gson().toJson(clusterManager.getStatus()));
+        dataOutputStream.flush();
+    }
+
+    // Applies a change sent by the primary of a user this node holds the secondary copy for.
+    private void handleReplicate(String type, DataInputStream dataInputStream, DataOutputStream dataOutputStream)
+            throws IOException {
+        if (!clusterManager.isClustered()) {
+            throw new IOException("Rejected " + type + ": this server is not in a cluster");
+        }
+        String secret = dataInputStream.readUTF();
+        String username = dataInputStream.readUTF();
+        String path = dataInputStream.readUTF();
+        String target = ClusterManager.OP_RENAME.equals(type) ? dataInputStream.readUTF() : null;
+        long size = ClusterManager.OP_PUT.equals(type) ? dataInputStream.readLong() : 0;
+
+        File userDirectory = new File(USERS_DIRECTORY, username);
+        File file = path.isEmpty() ? userDirectory : new File(userDirectory, path);
+        File targetFile = target == null ? null : new File(userDirectory, target);
+        if (!clusterManager.isValidSecret(secret) || username.isEmpty() || size < 0
+                || !isInsideUsersDirectory(file) || (targetFile != null && !isInsideUsersDirectory(targetFile))) {
+            // The body, if any, cannot be trusted or skipped safely; drop the connection.
+            throw new IOException("Rejected " + type + " for " + username + "/" + path);
+        }
+
+        boolean existed = file.exists();
+        IOException failure = null;
+        try {
+            switch (type) {
+                case ClusterManager.OP_PUT:
+                    receiveReplica(dataInputStream, file, size);
+                    break;
+                case ClusterManager.OP_MKDIR:
+                    if (!file.mkdirs() && !file.isDirectory()) {
+                        throw new IOException("Cannot create directory");
+                    }
+                    break;
+                case ClusterManager.OP_DELETE:
                     if (file.isDirectory()) {
-                        deleteDirectory(file);
+                        TreeOperations.delete(file.toPath());
                     } else {
-                        file.delete();
+                        Files.deleteIfExists(file.toPath());
+                    }
+                    break;
+                default:
+                    if (file.exists()) {
+                        targetFile.getParentFile().mkdirs();
+                        Files.move(file.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
                     }
+                    break;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (failure != null && ClusterManager.OP_PUT.equals(type)) {
+            throw failure; // The stream position is unknown after a partial body.
+        }
+
+        if (failure == null) {
+            // A change that did not happen must not reach the index and caches.
+            clusterManager.runAsReplica(() -> {
+                if (ClusterManager.OP_RENAME.equals(type)) {
+                    pathChanges.renamed(file, targetFile);
+                } else if (ClusterManager.OP_DELETE.equals(type)) {
+                    pathChanges.deleted(file);
+                } else if (existed) {
+                    pathChanges.modified(file);
+                } else {
+                    pathChanges.created(file);
                 }
+            });
+        }
+        dataOutputStream.writeUTF(failure == null ? "REPLICATED" : "REPLICATION_FAILED");
+        dataOutputStream.flush();
+        if (failure != null) {
+            serverGUI.appendToConsole(getCurrentTime() + "Replica " + type + " failed for " + file + ": "
+                    + failure.getMessage());
+        }
+    }
+
+    private void receiveReplica(DataInputStream dataInputStream, File file, long size) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        Path temp = Durability.createTemp(file.toPath());
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        boolean complete = false;
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int n = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new EOFException("Replica body ended with " + remaining + " bytes outstanding");
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            complete = true;
+        } finally {
+            BufferPool.release(buffer);
+            if (!complete) {
+                Files.deleteIfExists(temp);
             }
         }
-        return directory.delete();
+        Durability.commit(temp, file.toPath());
     }
 
-    private void handleRenameFolder(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+    private boolean isInsideUsersDirectory(File file) {
+        try {
+            String root = new File(USERS_DIRECTORY).getCanonicalPath() + File.separator;
+            return file.getCanonicalPath().startsWith(root);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Whether user files are on the local disk, where the File-based subsystems can see them.
+    private boolean isLocalStorage() {
+        return storage.localFile("") != null;
+    }
+
+    // The user whose directory holds this path, or null when it is outside the users directory.
+    private String ownerOf(File file) {
+        try {
+            Path root = new File(USERS_DIRECTORY).getCanonicalFile().toPath();
+            Path path = file.getCanonicalFile().toPath();
+            return path.startsWith(root) && !path.equals(root) ? root.relativize(path).getName(0).toString() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void handleRenameFolder(DataInputStream dataInputStream, DataOutputStream dataOutputStream, Socket clientSocket)
+            throws IOException {
         try {
             String currentFolderPath = dataInputStream.readUTF();
             String newFolderName = dataInputStream.readUTF();
 
             File currentFolder = new File(currentFolderPath);
+            String owner = ownerOf(currentFolder);
+            if (!clusterManager.isLocal(owner)) {
+                writeRedirect(owner, dataOutputStream);
+                return;
+            }
+            long start = System.nanoTime();
 
             if (currentFolder.exists() && currentFolder.isDirectory()) {
                 String parentDir = currentFolder.getParent();
                 File newFolder = new File(parentDir, newFolderName);
 
                 boolean renameSuccess = currentFolder.renameTo(newFolder);
+                auditLog.record(AuditEvent.OP_RENAME, currentFolder, newFolder, 0, start,
+                        renameSuccess ? AuditEvent.RESULT_SUCCESS : AuditEvent.RESULT_FAILED, addressOf(clientSocket));
 
                 if (renameSuccess) {
+                    pathChanges.renamed(currentFolder, newFolder);
                     dataOutputStream.writeUTF("RENAME_SUCCESS");
                     serverGUI.appendToConsole(getCurrentTime() + "User changed folder name: " + currentFolder.getName() + " -> " + newFolderName);
                 } else {
@@ -3,13 +3,14 @@ package ftp_server;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.function.Consumer;
 
 public class FileHandler {
 
-    private static final int BUFFER_SIZE = 4096;
-
     public static void openSelectedFile(JList<String> fileList, File tempDirectory, FTP_Server serverGUI) {
         String selectedFile = fileList.getSelectedValue();
         if (selectedFile != null) {
@@ -39,8 +40,8 @@ public class FileHandler {
                 if (downloadFile.exists()) {
                     serverGUI.appendToConsole("File already exists in the download directory: " + selectedFile + "\n");
                 } else {
+                    byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
                     try (InputStream in = new FileInputStream(tempFile); OutputStream out = new FileOutputStream(downloadFile)) {
-                        byte[] buffer = new byte[BUFFER_SIZE];
                         int bytesRead;
                         while ((bytesRead = in.read(buffer)) != -1) {
                             out.write(buffer, 0, bytesRead);
@@ -51,6 +52,8 @@ public class FileHandler {
                     } catch (IOException e) {
                         serverGUI.appendToConsole("Error downloading file: " + e.getMessage());
                         e.printStackTrace();
+                    } finally {
+                        BufferPool.release(buffer);
                     }
                 }
             } else {
@@ -61,79 +64,88 @@ public class FileHandler {
         }
     }
 
-    public static byte[] receiveFileToMemoryDirectly(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
-            String fileName, FTP_Server serverGUI) {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        int bytesRead;
-        long fileSize = 0;
+    /*
+     * Streams fileSize bytes from the client into storage through a pooled
+     * buffer, so the declared size never decides an allocation. If storage
+     * fails the rest of the body is still read, keeping the connection in
+     * step, and false is returned. A body cut short aborts the write and throws.
+     */
+    public static boolean receiveToStorage(DataInputStream dataInputStream, long fileSize, Storage storage, String path,
+            FTP_Server serverGUI) throws IOException {
+        return receiveToStorage(dataInputStream, fileSize, storage, path, serverGUI::appendToConsole);
+    }
 
-        try {
-            fileSize = dataInputStream.readLong();
-            serverGUI.appendToConsole("File size: " + convertFileSize(fileSize));
+    // Logs through a plain callback so AllocationBenchmark can run it without a GUI.
+    static boolean receiveToStorage(DataInputStream dataInputStream, long fileSize, Storage storage, String path,
+            Consumer<String> console) throws IOException {
+        if (fileSize < 0) {
+            throw new IOException("Invalid file size: " + fileSize);
+        }
+        console.accept("File size: " + convertFileSize(fileSize));
+        FtpEvents.Transfer event = new FtpEvents.Transfer();
+        event.begin();
 
-            while (fileSize > 0
-                    && (bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, fileSize))) != -1) {
-                byteArrayOutputStream.write(buffer, 0, bytesRead);
-                fileSize -= bytesRead;
+        Storage.WriteChannel channel;
+        try {
+            channel = storage.openWrite(path);
+        } catch (IOException | IllegalArgumentException e) {
+            console.accept("Error saving file: " + e.getMessage() + "\n");
+            channel = null;
+        }
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        try {
+            long remaining = fileSize;
+            while (remaining > 0) {
+                int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException(path + " ended " + remaining + " bytes short");
+                }
+                remaining -= bytesRead;
+                if (channel != null && !writeFully(channel, buffer, bytesRead, console)) {
+                    channel = null;
+                }
             }
-
-            byte[] fileData = byteArrayOutputStream.toByteArray();
-            return fileData;
-
         } catch (IOException e) {
-            serverGUI.appendToConsole("Error receiving file: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+            if (channel != null) {
+                abortQuietly(channel);
+            }
+            throw e;
+        } finally {
+            BufferPool.release(buffer);
         }
-    }
-
-    public static void saveFileFromMemoryDirectly(byte[] fileData, File file, FTP_Server serverGUI) {
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            fileOutputStream.write(fileData);
-            fileOutputStream.flush();
-            serverGUI.appendToConsole("File saved successfully: " + file.getName() + "\n");
+        if (channel == null) {
+            return false;
+        }
+        try {
+            channel.close();
         } catch (IOException e) {
-            serverGUI.appendToConsole("Error saving file: " + e.getMessage() + "\n");
-            e.printStackTrace();
+            console.accept("Error saving file: " + e.getMessage() + "\n");
+            return false;
         }
+        FtpEvents.transferred(FtpEvents.DIRECTION_UPLOAD, path, fileSize, false, event);
+        console.accept("File saved successfully: " + path + "\n");
+        return true;
     }
 
-    public static byte[] receiveFileToMemoryViaFolder(DataInputStream dataInputStream, DataOutputStream dataOutputStream,
-            String fileName, FTP_Server serverGUI, long filesize) {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        int bytesRead;
-
+    private static boolean writeFully(Storage.WriteChannel channel, byte[] buffer, int length, Consumer<String> console) {
         try {
-            while (filesize > 0
-                    && (bytesRead = dataInputStream.read(
-                            buffer, 0,
-                            (int) Math.min(buffer.length, filesize)))
-                    != -1) {
-                byteArrayOutputStream.write(buffer, 0, bytesRead);
-                filesize -= bytesRead;
-//                serverGUI.appendToConsole("Receive bytesRead=" + bytesRead + " leftover=" + filesize);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+            while (data.hasRemaining()) {
+                channel.write(data);
             }
-
-            byte[] fileData = byteArrayOutputStream.toByteArray();
-            return fileData;
-
+            return true;
         } catch (IOException e) {
-            serverGUI.appendToConsole("Error receiving file: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+            console.accept("Error saving file: " + e.getMessage() + "\n");
+            abortQuietly(channel);
+            return false;
         }
     }
 
-    public static void saveFileFromMemoryViaFolder(byte[] fileData, File file, FTP_Server serverGUI) {
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            fileOutputStream.write(fileData);
-            fileOutputStream.flush();
-            serverGUI.appendToConsole("File saved successfully: " + file.getName() + "\n");
+    private static void abortQuietly(Storage.WriteChannel channel) {
+        try {
+            channel.abort();
         } catch (IOException e) {
-            serverGUI.appendToConsole("Error saving file: " + e.getMessage() + "\n");
-            e.printStackTrace();
+            // Best effort; nothing was committed.
         }
     }
 
@@ -191,18 +203,80 @@ public class FileHandler {
         }
     }
 
+    public static void sendFile(DataOutputStream dataOutputStream, File file, FTP_Server serverGUI, HotFileCache cache)
+            throws IOException {
+        ByteBuffer cached = cache.get(file);
+        if (cached == null) {
+            sendFile(dataOutputStream, file, serverGUI);
+            return;
+        }
+
+        long size = cached.remaining();
+        FtpEvents.Transfer event = new FtpEvents.Transfer();
+        event.begin();
+        dataOutputStream.writeLong(size);
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        try {
+            while (cached.hasRemaining()) {
+                int length = Math.min(buffer.length, cached.remaining());
+                cached.get(buffer, 0, length);
+                dataOutputStream.write(buffer, 0, length);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        FtpEvents.transferred(FtpEvents.DIRECTION_DOWNLOAD, file.getPath(), size, true, event);
+        serverGUI.appendToConsole("Client received and finished downloading (cached): " + file.getName() + "\nSize: "
+                + convertFileSize(size) + "\n");
+    }
+
     public static void sendFile(DataOutputStream dataOutputStream, File file, FTP_Server serverGUI) throws IOException {
+        FtpEvents.Transfer event = new FtpEvents.Transfer();
+        event.begin();
         dataOutputStream.writeLong(file.length());
         dataOutputStream.flush();
 
-        try (BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(file))) {
-            byte[] buffer = new byte[8192];
+        long sent = 0;
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        try (InputStream in = new FileInputStream(file)) {
             int bytesRead;
-            while ((bytesRead = bufferedInputStream.read(buffer)) != -1) {
+            while ((bytesRead = in.read(buffer)) != -1) {
                 dataOutputStream.write(buffer, 0, bytesRead);
+                sent += bytesRead;
             }
+        } finally {
+            BufferPool.release(buffer);
         }
+        FtpEvents.transferred(FtpEvents.DIRECTION_DOWNLOAD, file.getPath(), sent, false, event);
         serverGUI.appendToConsole("Client received and finished downloading: " + file.getName() + "\nSize: " 
                 + convertFileSize(file.length()) + "\n");
     }
+
+    // For storage that is not on the local disk; sends exactly size bytes after the length prefix.
+    public static void sendChannel(DataOutputStream dataOutputStream, ReadableByteChannel channel, long size,
+            String fileName, FTP_Server serverGUI) throws IOException {
+        FtpEvents.Transfer event = new FtpEvents.Transfer();
+        event.begin();
+        dataOutputStream.writeLong(size);
+
+        long remaining = size;
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        try {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer);
+            while (remaining > 0) {
+                chunk.clear().limit((int) Math.min(buffer.length, remaining));
+                int bytesRead = channel.read(chunk);
+                if (bytesRead == -1) {
+                    throw new EOFException(fileName + " ended " + remaining + " bytes short");
+                }
+                dataOutputStream.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        FtpEvents.transferred(FtpEvents.DIRECTION_DOWNLOAD, fileName, size, false, event);
+        serverGUI.appendToConsole("Client received and finished downloading: " + fileName + "\nSize: "
+                + convertFileSize(size) + "\n");
+    }
 }
@@ -31,8 +31,9 @@ public class FileModel implements Serializable {
         return path;
     }
 
+    // Images are files too; isImage() tells them apart.
     public boolean isFile() {
-        return TYPE_FILE.equals(type);
+        return TYPE_FILE.equals(type) || TYPE_IMAGE.equals(type);
     }
 
     public boolean isDirectory() {
@@ -0,0 +1,163 @@
+package ftp_server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Java Flight Recorder events for the server. They cost next to nothing
+ * unless a recording is running; start one with the profile in jfr/:
+ *
+ *   java -XX:StartFlightRecording=settings=jfr/ftp-server.jfc,filename=ftp.jfr ...
+ *
+ * and summarize it with: java ftp_server.JfrSummary ftp.jfr
+ *
+ * Each connection thread keeps a little per-command state here (user,
+ * bytes moved, time spent waiting on MySQL) so the Command event can report
+ * it without threading it through every handler.
+ */
+public class FtpEvents {
+
+    public static final String DIRECTION_UPLOAD = "upload";
+    public static final String DIRECTION_DOWNLOAD = "download";
+
+    private static final ThreadLocal<SessionState> STATE = ThreadLocal.withInitial(SessionState::new);
+
+    private static class SessionState {
+
+        String user;
+        int commands;
+        long bytes;
+        long commandBytes;
+        long commandDatabaseNanos;
+    }
+
+    @Name("ftp.Session")
+    @Label("FTP Session")
+    @Category("FTP Server")
+    @Description("A client connection from accept to close")
+    @StackTrace(false)
+    public static class Session extends Event {
+
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("User")
+        public String user;
+
+        @Label("Commands")
+        public int commands;
+
+        @Label("Bytes Transferred")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("ftp.Command")
+    @Label("FTP Command")
+    @Category("FTP Server")
+    @Description("One request handled on a connection")
+    @StackTrace(false)
+    public static class Command extends Event {
+
+        @Label("Command")
+        public String command;
+
+        @Label("User")
+        public String user;
+
+        @Label("Bytes Transferred")
+        @DataAmount
+        public long bytes;
+
+        @Label("Blocked on Database")
+        @Timespan(Timespan.NANOSECONDS)
+        public long databaseTime;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("ftp.Transfer")
+    @Label("FTP Transfer")
+    @Category("FTP Server")
+    @Description("A file body sent to or received from a client")
+    @StackTrace(false)
+    public static class Transfer extends Event {
+
+        @Label("Direction")
+        public String direction;
+
+        @Label("File")
+        public String file;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Served From Cache")
+        public boolean cached;
+    }
+
+    public static void setUser(String user) {
+        STATE.get().user = user;
+    }
+
+    // Called by the connection loop before each command.
+    public static void beginCommand() {
+        SessionState state = STATE.get();
+        state.commands++;
+        state.commandBytes = 0;
+        state.commandDatabaseNanos = 0;
+    }
+
+    public static void endCommand(String command, boolean failed, Command event) {
+        event.end();
+        if (event.shouldCommit()) {
+            SessionState state = STATE.get();
+            event.command = command;
+            event.user = state.user;
+            event.bytes = state.commandBytes;
+            event.databaseTime = state.commandDatabaseNanos;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+
+    public static void addDatabaseTime(long nanos) {
+        STATE.get().commandDatabaseNanos += nanos;
+    }
+
+    // Also clears the thread's state, since connection threads are pooled and reused.
+    public static void endSession(String remoteAddress, Session event) {
+        SessionState state = STATE.get();
+        STATE.remove();
+        event.end();
+        if (event.shouldCommit()) {
+            event.remoteAddress = remoteAddress;
+            event.user = state.user;
+            event.commands = state.commands;
+            event.bytes = state.bytes;
+            event.commit();
+        }
+    }
+
+    public static void transferred(String direction, String file, long bytes, boolean cached, Transfer event) {
+        SessionState state = STATE.get();
+        state.commandBytes += bytes;
+        state.bytes += bytes;
+        event.end();
+        if (event.shouldCommit()) {
+            event.direction = direction;
+            event.file = file;
+            event.bytes = bytes;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+}
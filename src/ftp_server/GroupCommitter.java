@@ -0,0 +1,123 @@
+package ftp_server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Collects commits from concurrent uploads for a short window and then
+ * fsyncs the whole group at once: all files concurrently, then the renames,
+ * then each touched directory once. An upload waits at most one window plus
+ * one round of syncs, while a burst of small uploads shares that cost.
+ */
+class GroupCommitter {
+
+    private static final int MAX_GROUP_FILES = 1024;
+    // fsync blocks on the device, not the CPU, so this is sized for the disk rather than the cores.
+    private static final int SYNC_THREADS = Math.max(1, Integer.getInteger("ftp.durability.syncThreads", 16));
+    private static final ExecutorService SYNCERS = Executors.newFixedThreadPool(SYNC_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "group-commit-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long windowNanos;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong groups = new AtomicLong();
+
+    private static class Request {
+
+        final List<Durability.Commit> batch;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(List<Durability.Commit> batch) {
+            this.batch = batch;
+        }
+    }
+
+    GroupCommitter(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        Thread committer = new Thread(this::run, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    void commit(List<Durability.Commit> batch) {
+        Request request = new Request(batch);
+        queue.add(request);
+        try {
+            // Not interruptible: the group may already be renaming this batch's files.
+            request.done.join();
+        } catch (CompletionException e) {
+            fail(batch, new IOException("Group commit failed", e.getCause()));
+        }
+    }
+
+    long getGroups() {
+        return groups.get();
+    }
+
+    private void run() {
+        List<Request> group = new ArrayList<>();
+        while (true) {
+            try {
+                Request first = queue.take();
+                group.add(first);
+                int files = first.batch.size();
+                long deadline = System.nanoTime() + windowNanos;
+                while (files < MAX_GROUP_FILES) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                    files += next.batch.size();
+                }
+                flush(group);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                for (Request request : group) {
+                    request.done.completeExceptionally(e);
+                }
+            }
+            group.clear();
+        }
+    }
+
+    private void flush(List<Request> group) {
+        List<Durability.Commit> commits = new ArrayList<>();
+        for (Request request : group) {
+            commits.addAll(request.batch);
+        }
+        // Issued concurrently so the file system can fold them into shared journal commits.
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
+        for (Durability.Commit commit : commits) {
+            syncs.add(CompletableFuture.runAsync(() -> Durability.syncFile(commit), SYNCERS));
+        }
+        for (CompletableFuture<Void> sync : syncs) {
+            sync.join();
+        }
+        Durability.renameAll(commits);
+        Durability.syncDirectories(commits);
+        groups.incrementAndGet();
+        for (Request request : group) {
+            request.done.complete(null);
+        }
+    }
+
+    private static void fail(List<Durability.Commit> batch, IOException error) {
+        for (Durability.Commit commit : batch) {
+            if (commit.error == null) {
+                commit.error = error;
+            }
+        }
+    }
+}
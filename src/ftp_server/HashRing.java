@@ -0,0 +1,70 @@
+package ftp_server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+ * Consistent-hash ring. Every node is placed at many points ("virtual
+ * nodes") so users spread evenly, and adding or removing a node only moves
+ * the users between it and its ring neighbours.
+ */
+public class HashRing {
+
+    private final TreeMap<Long, ClusterNode> ring = new TreeMap<>();
+    private final int nodeCount;
+
+    public HashRing(Collection<ClusterNode> nodes, int virtualNodes) {
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node.getId() + "#" + i), node);
+            }
+        }
+        this.nodeCount = nodes.size();
+    }
+
+    public ClusterNode primaryOf(String key) {
+        List<ClusterNode> replicas = replicasOf(key, 1);
+        return replicas.isEmpty() ? null : replicas.get(0);
+    }
+
+    // The first distinct nodes clockwise from the key's position: primary first, then its successors.
+    public List<ClusterNode> replicasOf(String key, int count) {
+        List<ClusterNode> replicas = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return replicas;
+        }
+        int wanted = Math.min(count, nodeCount);
+        SortedMap<Long, ClusterNode> tail = ring.tailMap(hash(key));
+        for (Map<Long, ClusterNode> part : List.of(tail, ring.headMap(hash(key)))) {
+            for (ClusterNode node : part.values()) {
+                if (replicas.size() == wanted) {
+                    return replicas;
+                }
+                if (!replicas.contains(node)) {
+                    replicas.add(node);
+                }
+            }
+        }
+        return replicas;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ftp_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps the contents of frequently downloaded files in off-heap buffers.
+ * A file is admitted once it has been requested a few times, entries are
+ * evicted least recently used first once the memory budget is reached, and
+ * an entry is ignored if the file's size or mtime has changed.
+ *
+ * Configured with -Dftp.cache.maxBytes (0 disables), -Dftp.cache.maxFileBytes
+ * and -Dftp.cache.admitAfter.
+ */
+public class HotFileCache {
+
+    private static final int TRACKED_CANDIDATES = 10_000;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final int admitAfterRequests;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> candidates = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > TRACKED_CANDIDATES;
+        }
+    };
+    private long usedBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+
+        final ByteBuffer data;
+        final long length;
+        final long lastModified;
+
+        Entry(ByteBuffer data, long length, long lastModified) {
+            this.data = data;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public static class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int entries;
+        private final long usedBytes;
+        private final long maxBytes;
+        private final double hitRate;
+
+        Stats(long hits, long misses, long evictions, int entries, long usedBytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.usedBytes = usedBytes;
+            this.maxBytes = maxBytes;
+            this.hitRate = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public double getHitRate() {
+            return hitRate;
+        }
+    }
+
+    public HotFileCache() {
+        this(Long.getLong("ftp.cache.maxBytes", 256L * 1024 * 1024),
+                Long.getLong("ftp.cache.maxFileBytes", 16L * 1024 * 1024),
+                Integer.getInteger("ftp.cache.admitAfter", 2));
+    }
+
+    public HotFileCache(long maxBytes, long maxFileBytes, int admitAfterRequests) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(Math.min(maxFileBytes, maxBytes), Integer.MAX_VALUE);
+        this.admitAfterRequests = admitAfterRequests;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /*
+     * Returns a read-only view of the cached contents, or null if the file
+     * should be read from disk. A miss counts towards admission, and the
+     * request that gets a file admitted loads it and is served from memory.
+     */
+    public ByteBuffer get(File file) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(file);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        boolean admit;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.length == length && entry.lastModified == lastModified) {
+                    hits.incrementAndGet();
+                    return entry.data.asReadOnlyBuffer();
+                }
+                remove(key);
+            }
+            misses.incrementAndGet();
+            if (length > maxFileBytes) {
+                return null;
+            }
+            int requests = candidates.merge(key, 1, Integer::sum);
+            admit = requests >= admitAfterRequests;
+            if (admit) {
+                candidates.remove(key);
+            }
+        }
+        if (admit) {
+            ByteBuffer data = load(file, key, length, lastModified);
+            return data == null ? null : data.asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    public synchronized void invalidate(File file) {
+        String key = key(file);
+        String prefix = key + File.separator;
+        remove(key);
+        candidates.remove(key);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> cached = it.next();
+            if (cached.getKey().startsWith(prefix)) {
+                usedBytes -= cached.getValue().length;
+                it.remove();
+            }
+        }
+        candidates.keySet().removeIf(candidate -> candidate.startsWith(prefix));
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), entries.size(), usedBytes, maxBytes);
+    }
+
+    private ByteBuffer load(File file, String key, long length, long lastModified) {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) != -1) {
+                // keep reading until the buffer is full
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (data.hasRemaining() || file.lastModified() != lastModified) {
+            // Changed while loading.
+            return null;
+        }
+        data.flip();
+
+        synchronized (this) {
+            remove(key);
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes + length > maxBytes && it.hasNext()) {
+                usedBytes -= it.next().getValue().length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+            entries.put(key, new Entry(data, length, lastModified));
+            usedBytes += length;
+        }
+        return data;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            usedBytes -= removed.length;
+        }
+    }
+
+    private static String key(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+}
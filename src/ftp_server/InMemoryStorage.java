@@ -0,0 +1,165 @@
+package ftp_server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Files kept on the heap, keyed by path. Useful for tests and for measuring
+ * the protocol without disk I/O; nothing survives a restart. Directories are
+ * implicit, as in an object store.
+ */
+public class InMemoryStorage implements Storage {
+
+    private final ConcurrentSkipListMap<String, Blob> objects = new ConcurrentSkipListMap<>();
+
+    private static class Blob {
+
+        final byte[] data;
+        final long lastModified;
+
+        Blob(byte[] data) {
+            this.data = data;
+            this.lastModified = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public List<StorageEntry> list(String path) throws IOException {
+        String directory = StorageKeys.normalize(path);
+        if (objects.containsKey(directory)) {
+            throw new NoSuchFileException(directory);
+        }
+        return StorageKeys.children(directory, listObjects(directory));
+    }
+
+    @Override
+    public StorageEntry stat(String path) {
+        String normalized = StorageKeys.normalize(path);
+        Blob blob = objects.get(normalized);
+        if (blob != null) {
+            return new StorageEntry(StorageKeys.name(normalized), normalized, false, blob.data.length,
+                    blob.lastModified);
+        }
+        if (normalized.isEmpty() || !under(normalized).isEmpty()) {
+            return new StorageEntry(StorageKeys.name(normalized), normalized, true, 0, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public ReadableByteChannel openRead(String path) throws IOException {
+        String normalized = StorageKeys.normalize(path);
+        Blob blob = objects.get(normalized);
+        if (blob == null) {
+            throw new NoSuchFileException(normalized);
+        }
+        return Channels.newChannel(new ByteArrayInputStream(blob.data));
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) {
+        String normalized = StorageKeys.normalize(path);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        return new WriteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer source) {
+                int length = source.remaining();
+                if (source.hasArray()) {
+                    buffer.write(source.array(), source.arrayOffset() + source.position(), length);
+                    source.position(source.limit());
+                } else {
+                    byte[] copy = new byte[length];
+                    source.get(copy);
+                    buffer.write(copy, 0, length);
+                }
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                if (open) {
+                    open = false;
+                    objects.put(normalized, new Blob(buffer.toByteArray()));
+                }
+            }
+
+            @Override
+            public void abort() {
+                open = false;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean rename(String from, String to) {
+        String source = StorageKeys.normalize(from);
+        String target = StorageKeys.normalize(to);
+        if (stat(source) == null || stat(target) != null) {
+            return false;
+        }
+        Blob blob = objects.remove(source);
+        if (blob != null) {
+            objects.put(target, blob);
+            return true;
+        }
+        // A directory: move every key under it.
+        for (Map.Entry<String, Blob> entry : new ArrayList<>(under(source).entrySet())) {
+            String rest = entry.getKey().substring(source.length());
+            objects.put(target + rest, entry.getValue());
+            objects.remove(entry.getKey());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return objects.remove(StorageKeys.normalize(path)) != null;
+    }
+
+    @Override
+    public File localFile(String path) {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "memory (" + objects.size() + " files)";
+    }
+
+    // Every file under a directory, at any depth; used by the object store stand-in for listings.
+    List<StorageEntry> listObjects(String directory) {
+        List<StorageEntry> entries = new ArrayList<>();
+        for (Map.Entry<String, Blob> entry : under(directory).entrySet()) {
+            entries.add(new StorageEntry(StorageKeys.name(entry.getKey()), entry.getKey(), false,
+                    entry.getValue().data.length, entry.getValue().lastModified));
+        }
+        return entries;
+    }
+
+    private NavigableMap<String, Blob> under(String directory) {
+        String prefix = StorageKeys.prefix(directory);
+        if (prefix.isEmpty()) {
+            return objects;
+        }
+        // '0' sorts right after '/', so this covers exactly the keys starting with the prefix.
+        return objects.subMap(prefix, true, directory + "0", false);
+    }
+}
@@ -0,0 +1,41 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class IndexEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private String type;
+    private String path;
+    private long size;
+    private long modified;
+
+    public IndexEntry(String name, String type, String path, long size, long modified) {
+        this.name = name;
+        this.type = type;
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+}
@@ -0,0 +1,142 @@
+package ftp_server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/*
+ * Summarizes a recording made with jfr/ftp-server.jfc into per-command
+ * latency and per-direction transfer throughput tables.
+ *
+ *   java -cp ... ftp_server.JfrSummary recording.jfr
+ */
+public class JfrSummary {
+
+    private static class CommandStats {
+
+        final List<Long> latencies = new ArrayList<>();
+        long databaseNanos;
+        long bytes;
+        long failed;
+    }
+
+    private static class TransferStats {
+
+        long count;
+        long bytes;
+        long nanos;
+        long cached;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java ftp_server.JfrSummary <recording.jfr>");
+            System.exit(2);
+        }
+        Path recording = Paths.get(args[0]);
+
+        Map<String, CommandStats> commands = new TreeMap<>();
+        Map<String, TransferStats> transfers = new TreeMap<>();
+        long sessions = 0;
+        Instant first = null;
+        Instant last = null;
+
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String type = event.getEventType().getName();
+                if (!type.startsWith("ftp.")) {
+                    continue;
+                }
+                if (first == null || event.getStartTime().isBefore(first)) {
+                    first = event.getStartTime();
+                }
+                if (last == null || event.getEndTime().isAfter(last)) {
+                    last = event.getEndTime();
+                }
+                switch (type) {
+                    case "ftp.Command": {
+                        CommandStats stats = commands.computeIfAbsent(String.valueOf(event.getString("command")),
+                                key -> new CommandStats());
+                        stats.latencies.add(event.getDuration().toNanos());
+                        stats.databaseNanos += event.getLong("databaseTime");
+                        stats.bytes += event.getLong("bytes");
+                        if (event.getBoolean("failed")) {
+                            stats.failed++;
+                        }
+                        break;
+                    }
+                    case "ftp.Transfer": {
+                        TransferStats stats = transfers.computeIfAbsent(String.valueOf(event.getString("direction")),
+                                key -> new TransferStats());
+                        stats.count++;
+                        stats.bytes += event.getLong("bytes");
+                        stats.nanos += event.getDuration().toNanos();
+                        if (event.getBoolean("cached")) {
+                            stats.cached++;
+                        }
+                        break;
+                    }
+                    case "ftp.Session":
+                        sessions++;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        double seconds = first == null ? 0 : Math.max(1e-3, Duration.between(first, last).toNanos() / 1e9);
+        System.out.printf("Recording: %s%n", recording);
+        System.out.printf("Span: %.1f s, %d sessions%n%n", seconds, sessions);
+
+        System.out.println("Commands (latency in ms)");
+        System.out.printf("%-24s %8s %8s %8s %8s %8s %8s %8s %10s %7s%n", "command", "count", "per sec", "mean",
+                "p50", "p95", "p99", "max", "db mean", "failed");
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            CommandStats stats = entry.getValue();
+            List<Long> latencies = stats.latencies;
+            Collections.sort(latencies);
+            long total = 0;
+            for (long latency : latencies) {
+                total += latency;
+            }
+            int count = latencies.size();
+            System.out.printf("%-24s %8d %8.1f %8.2f %8.2f %8.2f %8.2f %8.2f %10.2f %7d%n", entry.getKey(), count,
+                    count / seconds, millis(total / count), millis(percentile(latencies, 50)),
+                    millis(percentile(latencies, 95)), millis(percentile(latencies, 99)),
+                    millis(latencies.get(count - 1)), millis(stats.databaseNanos / count), stats.failed);
+        }
+
+        System.out.println();
+        System.out.println("Transfers");
+        System.out.printf("%-10s %8s %12s %14s %14s %8s%n", "direction", "count", "MB total", "MB/s (each)",
+                "MB/s (overall)", "cached");
+        for (Map.Entry<String, TransferStats> entry : transfers.entrySet()) {
+            TransferStats stats = entry.getValue();
+            double megabytes = stats.bytes / (1024.0 * 1024.0);
+            double perTransfer = stats.nanos == 0 ? 0 : megabytes / (stats.nanos / 1e9);
+            System.out.printf("%-10s %8d %12.1f %14.1f %14.1f %8d%n", entry.getKey(), stats.count, megabytes,
+                    perTransfer, megabytes / seconds, stats.cached);
+        }
+    }
+
+    // Nearest-rank percentile of an already sorted list.
+    private static long percentile(List<Long> sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,100 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class JobModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String TYPE_DELETE_DIR = "DELETE_DIR";
+    public static final String TYPE_COPY_DIR = "COPY_DIR";
+    public static final String TYPE_MOVE = "MOVE";
+
+    public static final String STATE_QUEUED = "QUEUED";
+    public static final String STATE_RUNNING = "RUNNING";
+    public static final String STATE_COMPLETED = "COMPLETED";
+    public static final String STATE_FAILED = "FAILED";
+    public static final String STATE_CANCELLED = "CANCELLED";
+
+    private String id;
+    private String username;
+    private String type;
+    private String source;
+    private String target;
+    private String state;
+    private String message;
+    private long submittedAt;
+    private long updatedAt;
+    private TreeResult result;
+
+    public JobModel(String username, String type, String source, String target) {
+        this.username = username;
+        this.type = type;
+        this.source = source;
+        this.target = target;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+        this.updatedAt = System.currentTimeMillis();
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public void setSubmittedAt(long submittedAt) {
+        this.submittedAt = submittedAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public TreeResult getResult() {
+        return result;
+    }
+
+    public void setResult(TreeResult result) {
+        this.result = result;
+    }
+
+    public boolean isFinished() {
+        return STATE_COMPLETED.equals(state) || STATE_FAILED.equals(state) || STATE_CANCELLED.equals(state);
+    }
+}
@@ -0,0 +1,282 @@
+package ftp_server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class JobScheduler {
+
+    private static final int WORKER_THREADS = 4;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long FINISHED_JOB_RETENTION_MS = TimeUnit.HOURS.toMillis(24);
+
+    private final FTP_Server serverGUI;
+    private final File stateFile;
+    private final PathChangeListener changeListener;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, JobModel> jobs = new ConcurrentHashMap<>();
+    private final Map<String, TreeOperations.Progress> running = new ConcurrentHashMap<>();
+    private volatile boolean shuttingDown;
+
+    public JobScheduler(FTP_Server serverGUI, File stateDirectory, PathChangeListener changeListener) {
+        this.serverGUI = serverGUI;
+        this.changeListener = changeListener;
+        if (!stateDirectory.exists()) {
+            stateDirectory.mkdirs();
+        }
+        this.stateFile = new File(stateDirectory, "jobs.json");
+        this.workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "job-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public void resumePersistedJobs() {
+        if (!stateFile.exists()) {
+            return;
+        }
+        try {
+            String json = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8);
+            List<JobModel> saved = new Gson().fromJson(json, new TypeToken<List<JobModel>>() {
+            }.getType());
+            if (saved == null) {
+                return;
+            }
+            int resumed = 0;
+            for (JobModel job : saved) {
+                jobs.put(job.getId(), job);
+                if (!job.isFinished()) {
+                    job.setState(JobModel.STATE_QUEUED);
+                    enqueue(job);
+                    resumed++;
+                }
+            }
+            serverGUI.appendToConsole("Loaded " + saved.size() + " jobs, resumed " + resumed + " unfinished jobs");
+        } catch (IOException | RuntimeException e) {
+            serverGUI.appendToConsole("Error loading job state: " + e.getMessage());
+        }
+    }
+
+    public JobModel submit(JobModel job) {
+        job.setId(UUID.randomUUID().toString());
+        job.setSubmittedAt(System.currentTimeMillis());
+        job.setState(JobModel.STATE_QUEUED);
+        jobs.put(job.getId(), job);
+        if (!enqueue(job)) {
+            jobs.remove(job.getId());
+            return null;
+        }
+        persist();
+        return job;
+    }
+
+    // A job id alone does not reveal the job; only its owner may read it.
+    public JobModel getJob(String id, String username) {
+        JobModel job = jobs.get(id);
+        return job == null || !job.getUsername().equals(username) ? null : withProgress(job);
+    }
+
+    private JobModel withProgress(JobModel job) {
+        TreeOperations.Progress progress = running.get(job.getId());
+        if (progress != null) {
+            job.setResult(progress.snapshot());
+        }
+        return job;
+    }
+
+    public List<JobModel> getJobsForUser(String username) {
+        List<JobModel> userJobs = new ArrayList<>();
+        for (JobModel job : jobs.values()) {
+            if (job.getUsername().equals(username)) {
+                userJobs.add(withProgress(job));
+            }
+        }
+        return userJobs;
+    }
+
+    // Only the user who submitted a job may cancel it.
+    public boolean cancel(String id, String username) {
+        JobModel job = jobs.get(id);
+        if (job == null || job.isFinished() || !job.getUsername().equals(username)) {
+            return false;
+        }
+        synchronized (job) {
+            TreeOperations.Progress progress = running.get(id);
+            if (progress != null) {
+                progress.cancel();
+            }
+            job.setState(JobModel.STATE_CANCELLED);
+        }
+        persist();
+        return true;
+    }
+
+    public void shutdown() {
+        // Leave running jobs in their persisted RUNNING state so they resume on the next start.
+        shuttingDown = true;
+        for (TreeOperations.Progress progress : running.values()) {
+            progress.cancel();
+        }
+        workers.shutdownNow();
+    }
+
+    private boolean enqueue(JobModel job) {
+        try {
+            workers.execute(() -> run(job));
+            return true;
+        } catch (RejectedExecutionException e) {
+            serverGUI.appendToConsole("Job queue full, rejected job: " + job.getType() + " " + job.getSource());
+            return false;
+        }
+    }
+
+    private void run(JobModel job) {
+        TreeOperations.Progress progress = new TreeOperations.Progress(progressOperation(job.getType()));
+        synchronized (job) {
+            if (!JobModel.STATE_QUEUED.equals(job.getState())) {
+                return;
+            }
+            job.setState(JobModel.STATE_RUNNING);
+            running.put(job.getId(), progress);
+        }
+        persist();
+
+        try {
+            TreeResult result = execute(job, progress);
+            if (shuttingDown) {
+                return;
+            }
+            job.setResult(result);
+            synchronized (job) {
+                if (!JobModel.STATE_CANCELLED.equals(job.getState())) {
+                    job.setState(result.isSuccess() ? JobModel.STATE_COMPLETED : JobModel.STATE_FAILED);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            job.setResult(progress.snapshot());
+            job.setMessage(e.getMessage());
+            synchronized (job) {
+                if (!JobModel.STATE_CANCELLED.equals(job.getState())) {
+                    job.setState(JobModel.STATE_FAILED);
+                }
+            }
+        } finally {
+            running.remove(job.getId());
+            notifyChange(job);
+        }
+        if (shuttingDown) {
+            return;
+        }
+        persist();
+        serverGUI.appendToConsole("Job " + job.getType() + " " + job.getSource() + " finished: " + job.getState());
+    }
+
+    private void notifyChange(JobModel job) {
+        switch (job.getType()) {
+            case JobModel.TYPE_DELETE_DIR:
+                changeListener.deleted(new File(job.getSource()));
+                break;
+            case JobModel.TYPE_COPY_DIR:
+                changeListener.created(new File(job.getTarget()));
+                break;
+            case JobModel.TYPE_MOVE:
+                changeListener.renamed(new File(job.getSource()), new File(job.getTarget()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private TreeResult execute(JobModel job, TreeOperations.Progress progress) throws IOException {
+        Path source = new File(job.getSource()).toPath();
+        switch (job.getType()) {
+            case JobModel.TYPE_DELETE_DIR:
+                return TreeOperations.submitDelete(source, progress).join();
+            case JobModel.TYPE_COPY_DIR:
+                return TreeOperations.submitCopy(source, new File(job.getTarget()).toPath(), progress).join();
+            case JobModel.TYPE_MOVE:
+                return move(source, new File(job.getTarget()).toPath(), progress);
+            default:
+                throw new IOException("Unknown job type: " + job.getType());
+        }
+    }
+
+    private TreeResult move(Path source, Path target, TreeOperations.Progress progress) throws IOException {
+        if (!Files.exists(source) && Files.exists(target)) {
+            // Resumed after the rename already happened.
+            return movedResult(target, progress);
+        }
+        if (Files.isDirectory(source) && Files.isDirectory(target)) {
+            // Resumed after falling back to copy-then-delete: copying again overwrites the partial target.
+            return copyThenDelete(source, target, progress);
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return movedResult(target, progress);
+        } catch (AtomicMoveNotSupportedException e) {
+            if (!Files.isDirectory(source)) {
+                Files.move(source, target);
+                return movedResult(target, progress);
+            }
+            return copyThenDelete(source, target, progress);
+        }
+    }
+
+    private TreeResult copyThenDelete(Path source, Path target, TreeOperations.Progress progress) throws IOException {
+        TreeResult copied = TreeOperations.submitCopy(source, target, progress).join();
+        if (!copied.isSuccess()) {
+            return copied;
+        }
+        return TreeOperations.delete(source);
+    }
+
+    private TreeResult movedResult(Path target, TreeOperations.Progress progress) throws IOException {
+        if (Files.isDirectory(target)) {
+            return TreeOperations.submitSize(target, progress).join();
+        }
+        return new TreeResult(TreeResult.OP_SIZE, 1, 0, Files.size(target), 0, Collections.emptyList(), false, true);
+    }
+
+    private static String progressOperation(String type) {
+        switch (type) {
+            case JobModel.TYPE_DELETE_DIR:
+                return TreeResult.OP_DELETE;
+            case JobModel.TYPE_COPY_DIR:
+                return TreeResult.OP_COPY;
+            default:
+                return TreeResult.OP_SIZE;
+        }
+    }
+
+    private synchronized void persist() {
+        long cutoff = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MS;
+        jobs.values().removeIf(job -> job.isFinished() && job.getUpdatedAt() < cutoff);
+
+        File tempFile = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+        try {
+            Files.write(tempFile.toPath(), new Gson().toJson(new ArrayList<>(jobs.values())).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            serverGUI.appendToConsole("Error saving job state: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ftp_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Files under the users directory. Writes go to a temporary file that is
+ * committed through Durability on close, so uploads keep the configured
+ * fsync behaviour.
+ */
+public class LocalFileStorage implements Storage {
+
+    private final Path root;
+
+    public LocalFileStorage(File root) {
+        this.root = root.getAbsoluteFile().toPath().normalize();
+    }
+
+    @Override
+    public List<StorageEntry> list(String path) throws IOException {
+        String directory = StorageKeys.normalize(path);
+        Path resolved = resolve(directory);
+        if (!Files.isDirectory(resolved)) {
+            throw new NoSuchFileException(directory);
+        }
+        List<StorageEntry> entries = new ArrayList<>();
+        try (Stream<Path> children = Files.list(resolved)) {
+            children.forEach(child -> {
+                if (Durability.isTemp(child.getFileName().toString())) {
+                    return; // An upload still being written.
+                }
+                StorageEntry entry = entryOf(StorageKeys.child(directory, child.getFileName().toString()), child);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            });
+        }
+        return entries;
+    }
+
+    @Override
+    public StorageEntry stat(String path) throws IOException {
+        String normalized = StorageKeys.normalize(path);
+        return entryOf(normalized, resolve(normalized));
+    }
+
+    @Override
+    public ReadableByteChannel openRead(String path) throws IOException {
+        return FileChannel.open(resolve(StorageKeys.normalize(path)), StandardOpenOption.READ);
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) throws IOException {
+        Path target = resolve(StorageKeys.normalize(path));
+        Files.createDirectories(target.getParent());
+        Path temp = Durability.createTemp(target);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return new WriteChannel() {
+            private boolean failed;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                try {
+                    return channel.write(source);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                channel.close();
+                if (failed) {
+                    Files.deleteIfExists(temp);
+                } else {
+                    Durability.commit(temp, target);
+                }
+            }
+
+            @Override
+            public void abort() throws IOException {
+                failed = true;
+                close();
+            }
+        };
+    }
+
+    @Override
+    public boolean rename(String from, String to) throws IOException {
+        Path source = resolve(StorageKeys.normalize(from));
+        Path target = resolve(StorageKeys.normalize(to));
+        // One move, so a target created concurrently is never replaced.
+        try {
+            Files.move(source, target);
+            return true;
+        } catch (FileAlreadyExistsException | NoSuchFileException | DirectoryNotEmptyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        try {
+            return Files.deleteIfExists(resolve(StorageKeys.normalize(path)));
+        } catch (DirectoryNotEmptyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public File localFile(String path) {
+        return resolve(StorageKeys.normalize(path)).toFile();
+    }
+
+    @Override
+    public String toString() {
+        return "local " + root;
+    }
+
+    private Path resolve(String path) {
+        return path.isEmpty() ? root : root.resolve(path);
+    }
+
+    private static StorageEntry entryOf(String path, Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            return new StorageEntry(StorageKeys.name(path), path, attributes.isDirectory(),
+                    attributes.isDirectory() ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
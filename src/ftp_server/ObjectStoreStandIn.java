@@ -0,0 +1,131 @@
+package ftp_server;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/*
+ * A local HTTP server speaking the ObjectStoreStorage dialect, backed by an
+ * InMemoryStorage. Lets the object store path be exercised without a real
+ * store:
+ *
+ *   java -cp ... ftp_server.ObjectStoreStandIn 9000 ftp
+ *   java -Dftp.storage=object -Dftp.storage.url=http://127.0.0.1:9000/ftp ...
+ */
+public class ObjectStoreStandIn {
+
+    private final InMemoryStorage objects = new InMemoryStorage();
+    private final HttpServer server;
+    private final String bucketPath;
+
+    public ObjectStoreStandIn(int port, String bucket) throws IOException {
+        this.bucketPath = "/" + bucket;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(bucketPath, this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9000;
+        String bucket = args.length > 1 ? args[1] : "ftp";
+        ObjectStoreStandIn standIn = new ObjectStoreStandIn(port, bucket);
+        standIn.start();
+        System.out.println("Object store stand-in on http://127.0.0.1:" + standIn.getPort() + "/" + bucket);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String rawPath = exchange.getRequestURI().getRawPath();
+            String key = rawPath.length() > bucketPath.length() ? decode(rawPath.substring(bucketPath.length() + 1)) : "";
+            String method = exchange.getRequestMethod();
+            if (method.equals("HEAD") || method.equals("DELETE")) {
+                // HttpServer drops the connection after these, so tell the client not to pool it.
+                exchange.getResponseHeaders().set("Connection", "close");
+            }
+            try {
+                if (key.isEmpty() && method.equals("GET")) {
+                    list(exchange);
+                } else if (key.isEmpty()) {
+                    exchange.sendResponseHeaders(405, -1);
+                } else if (method.equals("PUT")) {
+                    put(exchange, key);
+                } else if (method.equals("GET") || method.equals("HEAD")) {
+                    get(exchange, key, method.equals("HEAD"));
+                } else if (method.equals("DELETE")) {
+                    exchange.sendResponseHeaders(objects.delete(key) ? 204 : 404, -1);
+                } else {
+                    exchange.sendResponseHeaders(405, -1);
+                }
+            } catch (IllegalArgumentException e) {
+                exchange.sendResponseHeaders(400, -1);
+            }
+        }
+    }
+
+    private void list(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        String prefix = query != null && query.startsWith("prefix=") ? decode(query.substring("prefix=".length())) : "";
+        byte[] body = new Gson().toJson(objects.listObjects(StorageKeys.normalize(prefix)))
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private void put(HttpExchange exchange, String key) throws IOException {
+        // Read the whole body first: a request cut off mid-body must not replace the object.
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        try (WritableByteChannel out = objects.openWrite(key)) {
+            out.write(ByteBuffer.wrap(body));
+        }
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    private void get(HttpExchange exchange, String key, boolean headOnly) throws IOException {
+        StorageEntry entry = objects.stat(key);
+        if (entry == null || entry.isDirectory()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("X-Last-Modified", Long.toString(entry.getLastModified()));
+        if (headOnly) {
+            exchange.getResponseHeaders().set("Content-Length", Long.toString(entry.getSize()));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, entry.getSize());
+        try (ReadableByteChannel in = objects.openRead(key); OutputStream out = exchange.getResponseBody()) {
+            Channels.newInputStream(in).transferTo(out);
+        }
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,290 @@
+package ftp_server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+/*
+ * Files as objects in an HTTP object store, one object per file, keyed by
+ * path under a bucket URL (-Dftp.storage.url=http://host:port/bucket):
+ *
+ *   PUT    /bucket/<key>           store the request body (chunked)
+ *   GET    /bucket/<key>           object body, 404 if missing
+ *   HEAD   /bucket/<key>           Content-Length and X-Last-Modified (epoch ms)
+ *   DELETE /bucket/<key>           204, or 404 if missing
+ *   GET    /bucket?prefix=<p>      JSON array of StorageEntry for every key under p
+ *
+ * ObjectStoreStandIn serves this dialect from memory for local testing.
+ * Directories are implicit, and renames copy then delete each object.
+ */
+public class ObjectStoreStorage implements Storage {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 60_000;
+    private static final int CHUNK_SIZE = BufferPool.MEDIUM;
+
+    private final String bucketUrl;
+
+    public ObjectStoreStorage(String bucketUrl) {
+        this.bucketUrl = bucketUrl.endsWith("/") ? bucketUrl.substring(0, bucketUrl.length() - 1) : bucketUrl;
+    }
+
+    @Override
+    public List<StorageEntry> list(String path) throws IOException {
+        String directory = StorageKeys.normalize(path);
+        StorageEntry entry = stat(directory);
+        if (entry != null && !entry.isDirectory()) {
+            throw new NoSuchFileException(directory);
+        }
+        return StorageKeys.children(directory, listObjects(directory));
+    }
+
+    @Override
+    public StorageEntry stat(String path) throws IOException {
+        String normalized = StorageKeys.normalize(path);
+        if (!normalized.isEmpty()) {
+            HttpURLConnection connection = open(objectUrl(normalized), "HEAD");
+            try {
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    return new StorageEntry(StorageKeys.name(normalized), normalized, false,
+                            connection.getContentLengthLong(), connection.getHeaderFieldLong("X-Last-Modified", 0));
+                }
+                expect(connection, HttpURLConnection.HTTP_NOT_FOUND);
+            } finally {
+                release(connection);
+            }
+        }
+        if (normalized.isEmpty() || !listObjects(normalized).isEmpty()) {
+            return new StorageEntry(StorageKeys.name(normalized), normalized, true, 0, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public ReadableByteChannel openRead(String path) throws IOException {
+        String normalized = StorageKeys.normalize(path);
+        HttpURLConnection connection = open(objectUrl(normalized), "GET");
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            release(connection);
+            throw new NoSuchFileException(normalized);
+        }
+        try {
+            expect(connection, HttpURLConnection.HTTP_OK);
+            return Channels.newChannel(connection.getInputStream());
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public WriteChannel openWrite(String path) throws IOException {
+        HttpURLConnection connection = open(objectUrl(StorageKeys.normalize(path)), "PUT");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        OutputStream body = connection.getOutputStream();
+        WritableByteChannel channel = Channels.newChannel(body);
+        return new WriteChannel() {
+            private boolean failed;
+            private boolean closed;
+
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                try {
+                    return channel.write(source);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return !closed;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (failed) {
+                    // Abandon the request mid-body so the store never sees a complete object.
+                    connection.disconnect();
+                    return;
+                }
+                try {
+                    channel.close();
+                    expect(connection, HttpURLConnection.HTTP_OK, HttpURLConnection.HTTP_CREATED,
+                            HttpURLConnection.HTTP_NO_CONTENT);
+                } finally {
+                    release(connection);
+                }
+            }
+
+            @Override
+            public void abort() throws IOException {
+                failed = true;
+                close();
+            }
+        };
+    }
+
+    @Override
+    public boolean rename(String from, String to) throws IOException {
+        String source = StorageKeys.normalize(from);
+        String target = StorageKeys.normalize(to);
+        StorageEntry entry = stat(source);
+        if (entry == null || stat(target) != null) {
+            return false;
+        }
+        if (!entry.isDirectory()) {
+            copyObject(source, target);
+            return deleteObject(source);
+        }
+        for (StorageEntry object : listObjects(source)) {
+            String rest = object.getPath().substring(source.length());
+            copyObject(object.getPath(), target + rest);
+            deleteObject(object.getPath());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        String normalized = StorageKeys.normalize(path);
+        return !normalized.isEmpty() && deleteObject(normalized);
+    }
+
+    @Override
+    public File localFile(String path) {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "object store " + bucketUrl;
+    }
+
+    private List<StorageEntry> listObjects(String directory) throws IOException {
+        URL url = URI.create(bucketUrl + "?prefix=" + encode(StorageKeys.prefix(directory))).toURL();
+        HttpURLConnection connection = open(url, "GET");
+        try {
+            expect(connection, HttpURLConnection.HTTP_OK);
+        } catch (IOException e) {
+            release(connection);
+            throw e;
+        }
+        try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(reader, new TypeToken<List<StorageEntry>>() {
+            }.getType());
+        }
+    }
+
+    // Streams one object into another; the store has no server-side copy in this dialect.
+    private void copyObject(String source, String target) throws IOException {
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        try (ReadableByteChannel in = openRead(source); WriteChannel out = openWrite(target)) {
+            InputStream body = Channels.newInputStream(in);
+            try {
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                }
+            } catch (IOException e) {
+                // A read that fails part way must not leave a truncated copy behind.
+                out.abort();
+                throw e;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private boolean deleteObject(String key) throws IOException {
+        HttpURLConnection connection = open(objectUrl(key), "DELETE");
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            expect(connection, HttpURLConnection.HTTP_OK, HttpURLConnection.HTTP_NO_CONTENT);
+            return true;
+        } finally {
+            release(connection);
+        }
+    }
+
+    private URL objectUrl(String key) throws IOException {
+        StringBuilder url = new StringBuilder(bucketUrl);
+        for (String segment : key.split("/")) {
+            url.append('/').append(encode(segment));
+        }
+        return URI.create(url.toString()).toURL();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static HttpURLConnection open(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection;
+    }
+
+    /*
+     * Drains and closes the response so the connection goes back to the
+     * keep-alive pool. disconnect() on an idle pooled connection can leave a
+     * closed socket in the pool, which then breaks the next streamed PUT.
+     */
+    private static void release(HttpURLConnection connection) {
+        try {
+            InputStream body = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream() : connection.getInputStream();
+            if (body != null) {
+                body.transferTo(OutputStream.nullOutputStream());
+                body.close();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+
+    private static void expect(HttpURLConnection connection, int... accepted) throws IOException {
+        int status;
+        try {
+            status = connection.getResponseCode();
+        } catch (FileNotFoundException e) {
+            status = HttpURLConnection.HTTP_NOT_FOUND;
+        }
+        for (int code : accepted) {
+            if (status == code) {
+                return;
+            }
+        }
+        throw new IOException(connection.getRequestMethod() + " " + connection.getURL() + " returned " + status);
+    }
+}
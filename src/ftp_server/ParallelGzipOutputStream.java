@@ -0,0 +1,117 @@
+package ftp_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Compresses fixed size blocks on several cores, each into its own gzip
+ * member. Concatenated members are a valid gzip stream, and at most
+ * MAX_IN_FLIGHT blocks are held in memory at once.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_IN_FLIGHT = THREADS * 2;
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "gzip-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream out;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block = BufferPool.acquire(BufferPool.LARGE);
+    private int count;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            submitBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == block.length) {
+                submitBlock();
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock();
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            BufferPool.release(block);
+            block = null;
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        byte[] data = block;
+        int length = count;
+        pending.add(COMPRESSORS.submit(() -> compress(data, length)));
+        block = BufferPool.acquire(BufferPool.LARGE);
+        count = 0;
+        while (pending.size() >= MAX_IN_FLIGHT) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(buffer, BufferPool.SMALL)) {
+                gzip.write(data, 0, length);
+            }
+            return buffer.toByteArray();
+        } finally {
+            BufferPool.release(data);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ftp_server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * FTP-style passive data channel. The control connection asks for a transfer
+ * and gets back a port and a one-time ticket; the client opens a second
+ * connection to that port, presents the ticket and the file body flows there,
+ * so the control connection stays free for other commands meanwhile.
+ *
+ * One listener is shared by all sessions and bound to the first free port of
+ * the range in ftp.passive.ports (e.g. "50000-50100").
+ */
+public class PassiveDataServer {
+
+    public static final String DIRECTION_DOWNLOAD = "download";
+    public static final String DIRECTION_UPLOAD = "upload";
+
+    private static final long TICKET_TTL_MS = Long.getLong("ftp.passive.ticketTimeoutMs", 30_000L);
+    private static final int MAX_PENDING_TICKETS = 1024;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+
+    private final FTP_Server serverGUI;
+    private final HotFileCache hotFileCache;
+    private final PathChangeListener pathChanges;
+    private final AuditLog auditLog;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final ExecutorService transfers;
+    private ServerSocket listener;
+
+    private static class Ticket {
+
+        final String direction;
+        final File file;
+        final long size;
+        final InetAddress client;
+        final long expiresAt;
+
+        Ticket(String direction, File file, long size, InetAddress client) {
+            this.direction = direction;
+            this.file = file;
+            this.size = size;
+            this.client = client;
+            this.expiresAt = System.currentTimeMillis() + TICKET_TTL_MS;
+        }
+    }
+
+    public PassiveDataServer(FTP_Server serverGUI, HotFileCache hotFileCache, PathChangeListener pathChanges,
+            AuditLog auditLog) {
+        this.serverGUI = serverGUI;
+        this.hotFileCache = hotFileCache;
+        this.pathChanges = pathChanges;
+        this.auditLog = auditLog;
+        this.transfers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "passive-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        String range = System.getProperty("ftp.passive.ports", "50000-50100");
+        int first;
+        int last;
+        try {
+            String[] bounds = range.split("-");
+            first = Integer.parseInt(bounds[0].trim());
+            last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+        } catch (NumberFormatException e) {
+            serverGUI.appendToConsole("Invalid passive port range: " + range);
+            return;
+        }
+
+        for (int port = first; port <= last && listener == null; port++) {
+            try {
+                listener = new ServerSocket(port);
+            } catch (IOException e) {
+                // Port taken; try the next one in the range.
+            }
+        }
+        if (listener == null) {
+            serverGUI.appendToConsole("No free passive port in range " + range + "; passive transfers disabled");
+            return;
+        }
+
+        Thread acceptor = new Thread(this::acceptLoop, "passive-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        serverGUI.appendToConsole("Passive data channel listening on port " + listener.getLocalPort());
+    }
+
+    public void shutdown() {
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        transfers.shutdownNow();
+        tickets.clear();
+    }
+
+    public boolean isAvailable() {
+        return listener != null && !listener.isClosed();
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    public String offerDownload(File file, InetAddress client) {
+        return issue(new Ticket(DIRECTION_DOWNLOAD, file, file.length(), client));
+    }
+
+    public String offerUpload(File file, long size, InetAddress client) {
+        return issue(new Ticket(DIRECTION_UPLOAD, file, size, client));
+    }
+
+    // Returns null when too many transfers are waiting for their data connection.
+    private String issue(Ticket ticket) {
+        long now = System.currentTimeMillis();
+        tickets.values().removeIf(pending -> pending.expiresAt < now);
+        if (tickets.size() >= MAX_PENDING_TICKETS) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes) {
+            id.append(String.format("%02x", b));
+        }
+        tickets.put(id.toString(), ticket);
+        return id.toString();
+    }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                transfers.execute(() -> handleDataConnection(socket));
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    serverGUI.appendToConsole("Error accepting data connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleDataConnection(Socket socket) {
+        try (Socket dataSocket = socket;
+                DataInputStream dataInputStream = new DataInputStream(dataSocket.getInputStream());
+                DataOutputStream dataOutputStream = new DataOutputStream(
+                        new BufferedOutputStream(dataSocket.getOutputStream(), BufferPool.MEDIUM))) {
+            dataSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            Ticket ticket = tickets.remove(dataInputStream.readUTF());
+            // Tickets are single use and only valid from the address that asked for them.
+            if (ticket == null || ticket.expiresAt < System.currentTimeMillis()
+                    || !ticket.client.equals(dataSocket.getInetAddress())) {
+                dataOutputStream.writeUTF("INVALID_TICKET");
+                dataOutputStream.flush();
+                return;
+            }
+            dataSocket.setSoTimeout(0);
+            String clientAddress = dataSocket.getInetAddress().getHostAddress();
+            long start = System.nanoTime();
+
+            if (DIRECTION_DOWNLOAD.equals(ticket.direction)) {
+                if (!ticket.file.isFile()) {
+                    dataOutputStream.writeUTF("FILE_NOT_FOUND");
+                    auditLog.record(AuditEvent.OP_DOWNLOAD, ticket.file, null, 0, start, AuditEvent.RESULT_NOT_FOUND,
+                            clientAddress);
+                } else {
+                    dataOutputStream.writeUTF("FILE_FOUND");
+                    String result = AuditEvent.RESULT_FAILED;
+                    try {
+                        FileHandler.sendFile(dataOutputStream, ticket.file, serverGUI, hotFileCache);
+                        dataOutputStream.flush();
+                        result = AuditEvent.RESULT_SUCCESS;
+                    } finally {
+                        auditLog.record(AuditEvent.OP_DOWNLOAD, ticket.file, null, ticket.file.length(), start, result,
+                                clientAddress);
+                    }
+                }
+                dataOutputStream.flush();
+            } else {
+                boolean replacing = ticket.file.exists();
+                try {
+                    receive(ticket, dataInputStream);
+                } catch (IOException e) {
+                    auditLog.record(AuditEvent.OP_UPLOAD, ticket.file, null, 0, start, AuditEvent.RESULT_FAILED,
+                            clientAddress);
+                    throw e;
+                }
+                auditLog.record(AuditEvent.OP_UPLOAD, ticket.file, null, ticket.size, start, AuditEvent.RESULT_SUCCESS,
+                        clientAddress);
+                if (replacing) {
+                    pathChanges.modified(ticket.file);
+                } else {
+                    pathChanges.created(ticket.file);
+                }
+                serverGUI.appendToConsole("File received over data channel and saved to: " + ticket.file);
+                dataOutputStream.writeUTF("UPLOAD_SUCCESS");
+                dataOutputStream.flush();
+            }
+        } catch (IOException e) {
+            serverGUI.appendToConsole("Data connection failed: " + e.getMessage());
+        }
+    }
+
+    // Streams the body into a temp file next to the target and commits it once complete.
+    private void receive(Ticket ticket, DataInputStream dataInputStream) throws IOException {
+        File parent = ticket.file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        Path temp = Durability.createTemp(ticket.file.toPath());
+        byte[] buffer = BufferPool.acquire(BufferPool.MEDIUM);
+        boolean complete = false;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            long remaining = ticket.size;
+            while (remaining > 0) {
+                int n = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new IOException("Data connection closed with " + remaining + " bytes outstanding");
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+                remaining -= n;
+            }
+            complete = true;
+        } finally {
+            BufferPool.release(buffer);
+            if (!complete) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        Durability.commit(temp, ticket.file.toPath());
+    }
+}
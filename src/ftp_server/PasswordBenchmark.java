@@ -0,0 +1,90 @@
+package ftp_server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Cost of password hashing and of a burst of logins. First times single
+ * PasswordHasher.hash and verify calls, then fires concurrent verifications
+ * at a PasswordService the way EXISTED_CONNECTION does and reports login
+ * latency and how many were turned away with SERVER_BUSY.
+ *
+ *   java -Dftp.password.iterations=310000 -cp ... ftp_server.PasswordBenchmark [samples] [burst logins]
+ */
+public class PasswordBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int burst = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        System.out.printf("%d cores, %d samples, burst of %d logins%n%n", Runtime.getRuntime().availableProcessors(),
+                samples, burst);
+        String stored = PasswordHasher.hash("correct horse");
+        List<Long> hashTimes = new ArrayList<>();
+        List<Long> verifyTimes = new ArrayList<>();
+        for (int i = 0; i < samples; i++) {
+            long start = System.nanoTime();
+            PasswordHasher.hash("correct horse");
+            hashTimes.add(System.nanoTime() - start);
+            start = System.nanoTime();
+            if (!PasswordHasher.verify("correct horse", stored)) {
+                throw new IllegalStateException("Verification failed");
+            }
+            verifyTimes.add(System.nanoTime() - start);
+        }
+        System.out.printf("%-10s %10s %10s %10s%n", "operation", "mean ms", "p50 ms", "p99 ms");
+        print("hash", hashTimes);
+        print("verify", verifyTimes);
+
+        PasswordService service = new PasswordService();
+        List<CompletableFuture<Long>> logins = new ArrayList<>();
+        int busy = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < burst; i++) {
+            long submitted = System.nanoTime();
+            try {
+                logins.add(service.verify("correct horse", stored).thenApply(valid -> System.nanoTime() - submitted));
+            } catch (RejectedExecutionException e) {
+                busy++;
+            }
+        }
+        List<Long> loginTimes = new ArrayList<>();
+        for (CompletableFuture<Long> login : logins) {
+            loginTimes.add(login.get());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        service.shutdown();
+
+        System.out.println();
+        print("login", loginTimes);
+        System.out.printf("%n%.1f logins/s, %d accepted, %d SERVER_BUSY%n", loginTimes.size() / seconds,
+                loginTimes.size(), busy);
+    }
+
+    private static void print(String operation, List<Long> times) {
+        if (times.isEmpty()) {
+            System.out.printf("%-10s %10s%n", operation, "-");
+            return;
+        }
+        Collections.sort(times);
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        System.out.printf("%-10s %10.2f %10.2f %10.2f%n", operation, millis(total / times.size()),
+                millis(percentile(times, 50)), millis(percentile(times, 99)));
+    }
+
+    // Nearest-rank percentile of an already sorted list.
+    private static long percentile(List<Long> sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,171 @@
+package ftp_server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs password hashing and verification on a core-sized pool so a burst of
+ * logins costs CPU, not connection threads. The pool's queue is bounded
+ * (ftp.password.queueDepth); past it, submissions are rejected and the caller
+ * answers SERVER_BUSY. Each client address and username pair also gets a
+ * token bucket (ftp.login.burst attempts, refilled at ftp.login.perMinute),
+ * so failed guesses from one address cannot lock the user out everywhere.
+ * At most MAX_TRACKED_BUCKETS are kept; the least recently used go first.
+ */
+public class PasswordService {
+
+    private static final int BURST = Integer.getInteger("ftp.login.burst", 5);
+    private static final double REFILL_PER_MS = Integer.getInteger("ftp.login.perMinute", 10) / 60_000.0;
+    private static final int MAX_TRACKED_BUCKETS = 10_000;
+
+    private final ThreadPoolExecutor workers;
+    private final BucketMap buckets = new BucketMap();
+    private volatile String dummyHash;
+
+    private final AtomicLong hashes = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong workNanos = new AtomicLong();
+
+    private static class TokenBucket {
+
+        private double tokens = BURST;
+        private long updatedAt = System.currentTimeMillis();
+
+        synchronized boolean tryTake() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(BURST, tokens + (now - updatedAt) * REFILL_PER_MS);
+            updatedAt = now;
+        }
+    }
+
+    // Access-ordered, so the eldest entry is the bucket used least recently.
+    private static class BucketMap extends LinkedHashMap<String, TokenBucket> {
+
+        private static final long serialVersionUID = 1L;
+
+        BucketMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_TRACKED_BUCKETS;
+        }
+    }
+
+    public static class Stats {
+
+        private final long hashes;
+        private final long verifications;
+        private final long rejected;
+        private final long rateLimited;
+        private final int queued;
+        private final int active;
+        private final double averageMillis;
+
+        Stats(long hashes, long verifications, long rejected, long rateLimited, int queued, int active,
+                double averageMillis) {
+            this.hashes = hashes;
+            this.verifications = verifications;
+            this.rejected = rejected;
+            this.rateLimited = rateLimited;
+            this.queued = queued;
+            this.active = active;
+            this.averageMillis = averageMillis;
+        }
+    }
+
+    public PasswordService() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueDepth = Integer.getInteger("ftp.password.queueDepth", threads * 16);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("Password hashing queue full");
+                });
+    }
+
+    // Returns false if this address has used up its attempts for the user for now.
+    public boolean tryAcquire(String address, String username) {
+        TokenBucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.computeIfAbsent(address + "/" + username, key -> new TokenBucket());
+        }
+        if (bucket.tryTake()) {
+            return true;
+        }
+        rateLimited.incrementAndGet();
+        return false;
+    }
+
+    // Throws RejectedExecutionException when the queue is full.
+    public CompletableFuture<String> hash(String password) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            String hash = PasswordHasher.hash(password);
+            hashes.incrementAndGet();
+            workNanos.addAndGet(System.nanoTime() - start);
+            return hash;
+        }, workers);
+    }
+
+    /*
+     * Verifies against the stored value, or against a throwaway hash when the
+     * user does not exist, so both cases take the same time.
+     * Throws RejectedExecutionException when the queue is full.
+     */
+    public CompletableFuture<Boolean> verify(String password, String stored) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            boolean valid;
+            if (stored == null) {
+                PasswordHasher.verify(String.valueOf(password), dummyHash());
+                valid = false;
+            } else {
+                valid = PasswordHasher.verify(password, stored);
+            }
+            verifications.incrementAndGet();
+            workNanos.addAndGet(System.nanoTime() - start);
+            return valid;
+        }, workers);
+    }
+
+    public Stats getStats() {
+        long operations = hashes.get() + verifications.get();
+        return new Stats(hashes.get(), verifications.get(), rejected.get(), rateLimited.get(),
+                workers.getQueue().size(), workers.getActiveCount(),
+                operations == 0 ? 0 : workNanos.get() / 1_000_000.0 / operations);
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private String dummyHash() {
+        if (dummyHash == null) {
+            dummyHash = PasswordHasher.hash("unused");
+        }
+        return dummyHash;
+    }
+}
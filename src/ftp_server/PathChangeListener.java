@@ -0,0 +1,14 @@
+package ftp_server;
+
+import java.io.File;
+
+public interface PathChangeListener {
+
+    void created(File file);
+
+    void modified(File file);
+
+    void deleted(File file);
+
+    void renamed(File from, File to);
+}
@@ -0,0 +1,588 @@
+package ftp_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/*
+ * In-memory index of every user's files. Each user has two sorted maps: one
+ * keyed by relative path (for subtree updates) and one keyed by lower-cased
+ * name (so name-prefix queries are a range scan), plus a trigram index over
+ * names. Substring and glob queries take the names holding every trigram of
+ * the literal text they require and verify each candidate; patterns with
+ * fewer than three literal characters, or only common trigrams, fall back to
+ * scanning the name map. All modes stop as soon as the requested page is
+ * filled.
+ */
+public class SearchIndex implements PathChangeListener {
+
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final char KEY_SEPARATOR = '\u0000';
+    private static final int GRAM = 3;
+    // A trigram held by more than this fraction of a user's names is not worth narrowing by.
+    private static final int SELECTIVE_FRACTION = 8;
+
+    private final FTP_Server serverGUI;
+    private final Path usersRoot;
+    private final String displayRoot;
+    private final Map<String, UserIndex> users = new ConcurrentHashMap<>();
+    private volatile boolean building;
+
+    private static class UserIndex {
+
+        final ConcurrentSkipListMap<String, IndexEntry> byPath = new ConcurrentSkipListMap<>();
+        final ConcurrentSkipListMap<String, IndexEntry> byName = new ConcurrentSkipListMap<>();
+        final GramIndex byGram = new GramIndex();
+
+        void put(String relativePath, IndexEntry entry) {
+            IndexEntry previous = byPath.put(relativePath, entry);
+            if (previous != null) {
+                unlink(previous.getName(), relativePath);
+            }
+            String key = nameKey(entry.getName(), relativePath);
+            byName.put(key, entry);
+            byGram.add(key, grams(entry.getName().toLowerCase(Locale.ROOT)));
+        }
+
+        // Removes a path and everything under it, returning what was removed keyed by relative path.
+        Map<String, IndexEntry> removeTree(String relativePath) {
+            Map<String, IndexEntry> removed = new TreeMap<>();
+            remove(relativePath, removed);
+            NavigableMap<String, IndexEntry> children = byPath.subMap(relativePath + "/", true,
+                    relativePath + "/\uffff", true);
+            for (String child : new ArrayList<>(children.keySet())) {
+                remove(child, removed);
+            }
+            return removed;
+        }
+
+        /*
+         * Name keys that contain every trigram of the literal, in byName order.
+         * Null when the literal is too short, or its rarest trigram is so common
+         * that scanning byName fills a page sooner than sorting the candidates.
+         */
+        Iterable<String> candidates(String literal) {
+            if (literal.length() < GRAM) {
+                return null;
+            }
+            return byGram.candidates(grams(literal), byName.size() / SELECTIVE_FRACTION);
+        }
+
+        private void remove(String relativePath, Map<String, IndexEntry> removed) {
+            IndexEntry entry = byPath.remove(relativePath);
+            if (entry != null) {
+                unlink(entry.getName(), relativePath);
+                removed.put(relativePath, entry);
+            }
+        }
+
+        private void unlink(String name, String relativePath) {
+            String key = nameKey(name, relativePath);
+            byName.remove(key);
+            byGram.remove(key, grams(name.toLowerCase(Locale.ROOT)));
+        }
+
+        private static Set<String> grams(String text) {
+            Set<String> grams = new HashSet<>();
+            for (int i = 0; i + GRAM <= text.length(); i++) {
+                grams.add(text.substring(i, i + GRAM));
+            }
+            return grams;
+        }
+
+        static String nameKey(String name, String relativePath) {
+            return name.toLowerCase(Locale.ROOT) + KEY_SEPARATOR + relativePath;
+        }
+    }
+
+    /*
+     * Trigram postings for one user. Every name key gets a small int id, and
+     * each trigram an open-addressing set of ids, so a posting costs 6-16 bytes
+     * rather than a skip list node per key. Each name also costs one id map
+     * entry, about 60 bytes. All access holds this object's monitor.
+     */
+    private static class GramIndex {
+
+        private final Map<String, IntSet> byGram = new HashMap<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] keys = new String[16];
+        private int[] freeIds = new int[16];
+        private int freeCount;
+        private int nextId = 1;
+
+        synchronized void add(String key, Set<String> grams) {
+            if (ids.containsKey(key)) {
+                return;
+            }
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id >= keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[id] = key;
+            ids.put(key, id);
+            for (String gram : grams) {
+                byGram.computeIfAbsent(gram, ignored -> new IntSet()).add(id);
+            }
+        }
+
+        synchronized void remove(String key, Set<String> grams) {
+            Integer id = ids.remove(key);
+            if (id == null) {
+                return;
+            }
+            for (String gram : grams) {
+                IntSet postings = byGram.get(gram);
+                if (postings != null) {
+                    postings.remove(id);
+                    if (postings.size() == 0) {
+                        byGram.remove(gram);
+                    }
+                }
+            }
+            keys[id] = null;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[freeCount++] = id;
+        }
+
+        synchronized List<String> candidates(Set<String> grams, int maxPostings) {
+            List<IntSet> postings = new ArrayList<>();
+            IntSet rarest = null;
+            for (String gram : grams) {
+                IntSet ids = byGram.get(gram);
+                if (ids == null) {
+                    return Collections.emptyList();
+                }
+                postings.add(ids);
+                if (rarest == null || ids.size() < rarest.size()) {
+                    rarest = ids;
+                }
+            }
+            if (rarest.size() > maxPostings) {
+                return null;
+            }
+            List<String> matches = new ArrayList<>();
+            for (int id : rarest.slots) {
+                if (id != 0 && containsAll(postings, id)) {
+                    matches.add(keys[id]);
+                }
+            }
+            Collections.sort(matches);
+            return matches;
+        }
+
+        private static boolean containsAll(List<IntSet> postings, int id) {
+            for (IntSet ids : postings) {
+                if (!ids.contains(id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Linear-probing set of positive ints; 0 marks an empty slot.
+    private static class IntSet {
+
+        private int[] slots = new int[4];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        boolean contains(int value) {
+            int mask = slots.length - 1;
+            for (int i = slot(value, mask); slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(int value) {
+            if ((size + 1) * 3 > slots.length * 2) {
+                resize(slots.length * 2);
+            }
+            int mask = slots.length - 1;
+            int i = slot(value, mask);
+            while (slots[i] != 0) {
+                if (slots[i] == value) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = value;
+            size++;
+        }
+
+        void remove(int value) {
+            int mask = slots.length - 1;
+            int i = slot(value, mask);
+            while (slots[i] != value) {
+                if (slots[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // Shift later entries of the probe run back into the hole, so no tombstones are needed.
+            for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+                int home = slot(slots[j], mask);
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    slots[i] = slots[j];
+                    i = j;
+                }
+            }
+            slots[i] = 0;
+            size--;
+            if (slots.length > 4 && size * 8 < slots.length) {
+                resize(slots.length / 2);
+            }
+        }
+
+        private void resize(int capacity) {
+            int[] old = slots;
+            slots = new int[capacity];
+            size = 0;
+            for (int value : old) {
+                if (value != 0) {
+                    add(value);
+                }
+            }
+        }
+
+        private static int slot(int value, int mask) {
+            int hash = value * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+    public static class SearchResult {
+
+        private final List<IndexEntry> entries;
+        private final int offset;
+        private final boolean hasMore;
+        private final boolean indexing;
+
+        SearchResult(List<IndexEntry> entries, int offset, boolean hasMore, boolean indexing) {
+            this.entries = entries;
+            this.offset = offset;
+            this.hasMore = hasMore;
+            this.indexing = indexing;
+        }
+
+        public List<IndexEntry> getEntries() {
+            return entries;
+        }
+    }
+
+    public SearchIndex(FTP_Server serverGUI, File usersRoot) {
+        this.serverGUI = serverGUI;
+        this.usersRoot = usersRoot.getAbsoluteFile().toPath().normalize();
+        this.displayRoot = usersRoot.getPath().replace("\\", "/");
+    }
+
+    // Scans all user directories in the background; queries see partial results until it finishes.
+    public void buildAsync() {
+        building = true;
+        Thread builder = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                ForkJoinPool.commonPool().invoke(new ScanTask(usersRoot));
+            } finally {
+                building = false;
+            }
+            long entries = 0;
+            for (UserIndex index : users.values()) {
+                entries += index.byPath.size();
+            }
+            serverGUI.appendToConsole("Search index built: " + entries + " entries for " + users.size() + " users in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }, "search-index-builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    public SearchResult search(SearchQuery query) {
+        int limit = query.getLimit() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(query.getLimit(), MAX_PAGE_SIZE);
+        int offset = query.getOffset();
+        UserIndex index = users.get(query.getUsername());
+        List<IndexEntry> page = new ArrayList<>();
+        if (index == null) {
+            return new SearchResult(page, offset, false, building);
+        }
+
+        String pattern = query.getPattern().toLowerCase(Locale.ROOT);
+        Predicate<IndexEntry> filter = filterFor(query);
+        Iterable<String> candidates;
+        Predicate<String> nameMatcher;
+        switch (query.getMode()) {
+            case SearchQuery.MODE_PREFIX:
+                // All keys starting with the prefix sort between prefix and prefix + U+FFFF.
+                candidates = index.byName.subMap(pattern, true, pattern + '\uffff', true).navigableKeySet();
+                nameMatcher = name -> true;
+                break;
+            case SearchQuery.MODE_GLOB:
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                candidates = index.candidates(requiredLiteral(pattern));
+                nameMatcher = name -> matcher.matches(Paths.get(name));
+                break;
+            case SearchQuery.MODE_SUBSTRING:
+                candidates = index.candidates(pattern);
+                nameMatcher = name -> name.contains(pattern);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown search mode: " + query.getMode());
+        }
+        if (candidates == null) {
+            candidates = index.byName.navigableKeySet();
+        }
+
+        int matched = 0;
+        for (String key : candidates) {
+            String name = key.substring(0, key.indexOf(KEY_SEPARATOR));
+            IndexEntry entry = index.byName.get(key);
+            if (entry == null || !nameMatcher.test(name) || !filter.test(entry)) {
+                continue;
+            }
+            if (matched++ < offset) {
+                continue;
+            }
+            if (page.size() == limit) {
+                return new SearchResult(page, offset, true, building);
+            }
+            page.add(entry);
+        }
+        return new SearchResult(page, offset, false, building);
+    }
+
+    @Override
+    public void created(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (userOf(path) == null) {
+            return;
+        }
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            // A copied tree can be large; scan it off the connection thread.
+            ForkJoinPool.commonPool().execute(new ScanTask(path));
+        } else {
+            index(path);
+        }
+    }
+
+    @Override
+    public void modified(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (userOf(path) != null) {
+            index(path);
+        }
+    }
+
+    @Override
+    public void deleted(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        String username = userOf(path);
+        UserIndex index = username == null ? null : users.get(username);
+        if (index == null) {
+            return;
+        }
+        String relativePath = relativePath(path);
+        if (relativePath.isEmpty()) {
+            users.remove(username);
+        } else {
+            index.removeTree(relativePath);
+        }
+    }
+
+    // Re-keys the moved subtree in place; only the renamed entry itself changes name.
+    @Override
+    public void renamed(File from, File to) {
+        Path source = from.getAbsoluteFile().toPath().normalize();
+        Path target = to.getAbsoluteFile().toPath().normalize();
+        String sourceUser = userOf(source);
+        String targetUser = userOf(target);
+        UserIndex sourceIndex = sourceUser == null ? null : users.get(sourceUser);
+        String sourcePath = relativePath(source);
+        String targetPath = relativePath(target);
+        if (sourceIndex == null || targetUser == null || sourcePath.isEmpty() || targetPath.isEmpty()) {
+            deleted(from);
+            created(to);
+            return;
+        }
+
+        Map<String, IndexEntry> moved = sourceIndex.removeTree(sourcePath);
+        if (moved.isEmpty()) {
+            // Not indexed yet, for example while the initial build is still running.
+            created(to);
+            return;
+        }
+        UserIndex targetIndex = users.computeIfAbsent(targetUser, key -> new UserIndex());
+        for (Map.Entry<String, IndexEntry> entry : moved.entrySet()) {
+            IndexEntry old = entry.getValue();
+            String newPath = targetPath + entry.getKey().substring(sourcePath.length());
+            boolean root = entry.getKey().equals(sourcePath);
+            String name = root ? target.getFileName().toString() : old.getName();
+            String type = root ? typeOf(name, FileModel.TYPE_DIRECTORY.equals(old.getType())) : old.getType();
+            targetIndex.put(newPath, new IndexEntry(name, type, displayPath(targetUser, newPath), old.getSize(),
+                    old.getModified()));
+        }
+    }
+
+    private Predicate<IndexEntry> filterFor(SearchQuery query) {
+        // Images are files too, as FileModel.isFile() has it.
+        return entry -> (query.getType() == null || query.getType().equals(entry.getType())
+                || (FileModel.TYPE_FILE.equals(query.getType()) && FileModel.TYPE_IMAGE.equals(entry.getType())))
+                && (query.getMinSize() == null || entry.getSize() >= query.getMinSize())
+                && (query.getMaxSize() == null || entry.getSize() <= query.getMaxSize())
+                && (query.getModifiedAfter() == null || entry.getModified() >= query.getModifiedAfter())
+                && (query.getModifiedBefore() == null || entry.getModified() <= query.getModifiedBefore());
+    }
+
+    private void index(Path path) {
+        try {
+            index(path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            // Gone again before we could stat it; a delete event will follow.
+        }
+    }
+
+    private void index(Path path, BasicFileAttributes attributes) {
+        String username = userOf(path);
+        if (username == null) {
+            return;
+        }
+        String relativePath = relativePath(path);
+        if (relativePath.isEmpty()) {
+            return;
+        }
+        String name = path.getFileName().toString();
+        if (Durability.isTemp(name)) {
+            return;
+        }
+        IndexEntry entry = new IndexEntry(name, typeOf(name, attributes.isDirectory()),
+                displayPath(username, relativePath), attributes.isDirectory() ? 0 : attributes.size(),
+                attributes.lastModifiedTime().toMillis());
+        users.computeIfAbsent(username, key -> new UserIndex()).put(relativePath, entry);
+    }
+
+    private static String typeOf(String name, boolean directory) {
+        return directory ? FileModel.TYPE_DIRECTORY
+                : ThumbnailService.isImage(name) ? FileModel.TYPE_IMAGE : FileModel.TYPE_FILE;
+    }
+
+    private String displayPath(String username, String relativePath) {
+        return displayRoot + "/" + username + "/" + relativePath;
+    }
+
+    // The longest run of plain characters every match of the glob must contain.
+    static String requiredLiteral(String glob) {
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i <= glob.length(); i++) {
+            char c = i < glob.length() ? glob.charAt(i) : '*';
+            boolean special = c == '*' || c == '?' || c == '\\' || c == '[' || c == ']' || c == '{' || c == '}';
+            if (!special && depth == 0) {
+                run.append(c);
+                continue;
+            }
+            if (run.length() > longest.length()) {
+                longest = run.toString();
+            }
+            run.setLength(0);
+            if (c == '[' || c == '{') {
+                depth++;
+            } else if ((c == ']' || c == '}') && depth > 0) {
+                depth--;
+            } else if (c == '\\') {
+                i++;
+            }
+        }
+        return longest;
+    }
+
+    private String userOf(Path absolute) {
+        if (!absolute.startsWith(usersRoot) || absolute.equals(usersRoot)) {
+            return null;
+        }
+        return usersRoot.relativize(absolute).getName(0).toString();
+    }
+
+    // Path inside the user's directory, '/' separated; empty for the user directory itself.
+    private String relativePath(Path absolute) {
+        Path relative = usersRoot.relativize(absolute);
+        if (relative.getNameCount() <= 1) {
+            return "";
+        }
+        return relative.subpath(1, relative.getNameCount()).toString().replace("\\", "/");
+    }
+
+    private class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        ScanTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            String username = userOf(directory);
+            if (username != null) {
+                users.computeIfAbsent(username, key -> new UserIndex());
+                index(directory);
+            }
+            List<ScanTask> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        ScanTask child = new ScanTask(entry);
+                        child.fork();
+                        children.add(child);
+                    } else {
+                        index(entry, attributes);
+                    }
+                }
+            } catch (IOException e) {
+                // Unreadable directory; index what we can.
+            }
+            for (ScanTask child : children) {
+                child.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class SearchQuery implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String MODE_PREFIX = "prefix";
+    public static final String MODE_SUBSTRING = "substring";
+    public static final String MODE_GLOB = "glob";
+
+    private String username;
+    private String pattern;
+    private String mode;
+    private String type;
+    private Long minSize;
+    private Long maxSize;
+    private Long modifiedAfter;
+    private Long modifiedBefore;
+    private int offset;
+    private int limit;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPattern() {
+        return pattern == null ? "" : pattern;
+    }
+
+    public String getMode() {
+        return mode == null ? MODE_SUBSTRING : mode;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Long getMinSize() {
+        return minSize;
+    }
+
+    public Long getMaxSize() {
+        return maxSize;
+    }
+
+    public Long getModifiedAfter() {
+        return modifiedAfter;
+    }
+
+    public Long getModifiedBefore() {
+        return modifiedBefore;
+    }
+
+    public int getOffset() {
+        return Math.max(0, offset);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
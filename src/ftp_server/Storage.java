@@ -0,0 +1,77 @@
+package ftp_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/*
+ * Where user files live. Paths are '/' separated and relative to the users
+ * root, starting with the username ("alice/docs/report.pdf"); "" is the root.
+ *
+ * Pick an implementation with -Dftp.storage:
+ *   local   files under the users directory (default)
+ *   memory  a heap map, for tests and benchmarks; lost on restart
+ *   object  an HTTP object store at -Dftp.storage.url (see ObjectStoreStorage)
+ *
+ * Only local serves every command. With the others, commands still built on
+ * java.io.File answer UNSUPPORTED_STORAGE, and clustering is refused at
+ * startup. StorageBenchmark compares the three.
+ */
+public interface Storage {
+
+    /*
+     * Children of a directory. Throws NoSuchFileException for a missing path
+     * or a file; stores without real directories list any other path as empty.
+     */
+    List<StorageEntry> list(String path) throws IOException;
+
+    // Null if nothing exists at the path.
+    StorageEntry stat(String path) throws IOException;
+
+    ReadableByteChannel openRead(String path) throws IOException;
+
+    /*
+     * The new content becomes visible, replacing any old file, when the
+     * channel is closed. If a write throws, close discards what was written.
+     */
+    WriteChannel openWrite(String path) throws IOException;
+
+    // False if the source is missing or the target already exists.
+    boolean rename(String from, String to) throws IOException;
+
+    // Deletes a file or an empty directory. False if missing or not empty.
+    boolean delete(String path) throws IOException;
+
+    /*
+     * The file backing a path when the storage is the local disk, otherwise
+     * null. Lets callers keep the hot file cache, change listeners and the
+     * other subsystems that work on java.io.File.
+     */
+    File localFile(String path);
+
+    interface WriteChannel extends WritableByteChannel {
+
+        // Discards what was written, for a source that failed part way; the old file is left as it was.
+        void abort() throws IOException;
+    }
+
+    static Storage create(File usersRoot) {
+        String kind = System.getProperty("ftp.storage", "local");
+        switch (kind) {
+            case "memory":
+                return new InMemoryStorage();
+            case "object":
+                String url = System.getProperty("ftp.storage.url");
+                if (url == null) {
+                    throw new IllegalArgumentException("ftp.storage=object needs ftp.storage.url");
+                }
+                return new ObjectStoreStorage(url);
+            case "local":
+                return new LocalFileStorage(usersRoot);
+            default:
+                throw new IllegalArgumentException("Unknown ftp.storage: " + kind);
+        }
+    }
+}
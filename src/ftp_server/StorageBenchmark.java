@@ -0,0 +1,119 @@
+package ftp_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/*
+ * The Storage backends side by side: local disk, memory, and an object store
+ * served by ObjectStoreStandIn on a loopback port. Each writes, stats, lists,
+ * reads, renames and deletes the same set of files through the Storage
+ * interface, the way the routed commands do. Local commits use the current
+ * ftp.durability mode.
+ *
+ *   java -cp ... ftp_server.StorageBenchmark [directory] [files] [KB per file]
+ */
+public class StorageBenchmark {
+
+    private static final String USER = "bench";
+
+    private interface Phase {
+
+        void run(Storage storage, String path) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "storage-bench");
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int kilobytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        byte[] body = new byte[kilobytes * 1024];
+
+        System.out.printf("%d files of %d KB, local durability %s, local root %s%n%n", files, kilobytes,
+                Durability.getMode(), directory.toAbsolutePath());
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s %10s%n", "backend", "write MB/s", "read MB/s",
+                "stat/s", "list ms", "rename/s", "delete/s", "total s");
+
+        Path scratch = Files.createDirectories(directory.resolve("local"));
+        try {
+            run("local", new LocalFileStorage(scratch.toFile()), files, body);
+        } finally {
+            deleteTree(scratch);
+        }
+        run("memory", new InMemoryStorage(), files, body);
+        ObjectStoreStandIn standIn = new ObjectStoreStandIn(0, "bench");
+        standIn.start();
+        try {
+            run("object", new ObjectStoreStorage("http://127.0.0.1:" + standIn.getPort() + "/bench"), files, body);
+        } finally {
+            standIn.stop();
+        }
+    }
+
+    private static void run(String backend, Storage storage, int files, byte[] body) throws IOException {
+        long start = System.nanoTime();
+        double write = phase(storage, files, "f", (s, path) -> {
+            try (Storage.WriteChannel channel = s.openWrite(path)) {
+                ByteBuffer data = ByteBuffer.wrap(body);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        });
+        double stat = phase(storage, files, "f", (s, path) -> {
+            if (s.stat(path) == null) {
+                throw new IOException("Missing after write: " + path);
+            }
+        });
+        long listStart = System.nanoTime();
+        int listed = storage.list(USER).size();
+        double listMillis = (System.nanoTime() - listStart) / 1e6;
+        if (listed != files) {
+            throw new IOException(backend + " listed " + listed + " of " + files + " files");
+        }
+        ByteBuffer sink = ByteBuffer.allocate(BufferPool.MEDIUM);
+        double read = phase(storage, files, "f", (s, path) -> {
+            try (ReadableByteChannel channel = s.openRead(path)) {
+                while (channel.read(sink) != -1) {
+                    sink.clear();
+                }
+            }
+        });
+        double rename = phase(storage, files, "f", (s, path) -> {
+            if (!s.rename(path, path.replace("/f", "/g"))) {
+                throw new IOException("Rename failed: " + path);
+            }
+        });
+        double delete = phase(storage, files, "g", (s, path) -> {
+            if (!s.delete(path)) {
+                throw new IOException("Delete failed: " + path);
+            }
+        });
+        double total = (System.nanoTime() - start) / 1e9;
+
+        double megabytes = (double) files * body.length / (1024 * 1024);
+        System.out.printf("%-8s %10.1f %10.1f %10.0f %10.2f %10.0f %10.0f %10.2f%n", backend, megabytes / write,
+                megabytes / read, files / stat, listMillis, files / rename, files / delete, total);
+    }
+
+    // Runs one operation over every file and returns the seconds it took.
+    private static double phase(Storage storage, int files, String prefix, Phase phase) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            phase.run(storage, USER + "/" + prefix + i + ".bin");
+        }
+        return Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ftp_server;
+
+import java.io.Serializable;
+
+public class StorageEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private String path;
+    private boolean directory;
+    private long size;
+    private long lastModified;
+
+    public StorageEntry(String name, String path, boolean directory, long size, long lastModified) {
+        this.name = name;
+        this.path = path;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+}
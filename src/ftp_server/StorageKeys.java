@@ -0,0 +1,71 @@
+package ftp_server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Path handling shared by the storage implementations. The key-value stores
+ * have no real directories: a directory exists while some key lies under it.
+ */
+final class StorageKeys {
+
+    private StorageKeys() {
+    }
+
+    // Canonical form of a storage path; rejects anything that could escape the root.
+    static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        for (String segment : normalized.split("/")) {
+            if (segment.equals("..") || segment.equals(".") || (segment.isEmpty() && !normalized.isEmpty())) {
+                throw new IllegalArgumentException("Invalid storage path: " + path);
+            }
+        }
+        return normalized;
+    }
+
+    static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    static String child(String directory, String name) {
+        return directory.isEmpty() ? name : directory + "/" + name;
+    }
+
+    // Prefix shared by every key under a directory.
+    static String prefix(String directory) {
+        return directory.isEmpty() ? "" : directory + "/";
+    }
+
+    // Folds the objects under a directory, at any depth, into its immediate children.
+    static List<StorageEntry> children(String directory, Collection<StorageEntry> objects) {
+        String prefix = prefix(directory);
+        Map<String, StorageEntry> children = new TreeMap<>();
+        for (StorageEntry object : objects) {
+            if (!object.getPath().startsWith(prefix)) {
+                continue;
+            }
+            String rest = object.getPath().substring(prefix.length());
+            int slash = rest.indexOf('/');
+            if (slash < 0) {
+                children.put(rest, new StorageEntry(rest, object.getPath(), false, object.getSize(),
+                        object.getLastModified()));
+            } else {
+                String name = rest.substring(0, slash);
+                StorageEntry previous = children.get(name);
+                long lastModified = Math.max(object.getLastModified(),
+                        previous == null ? 0 : previous.getLastModified());
+                children.put(name, new StorageEntry(name, child(directory, name), true, 0, lastModified));
+            }
+        }
+        return new ArrayList<>(children.values());
+    }
+}
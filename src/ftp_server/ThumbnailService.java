@@ -0,0 +1,311 @@
+package ftp_server;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * Generates JPEG thumbnails for image files on a small bounded pool and keeps
+ * them in a size-bounded disk cache fronted by a small in-memory LRU.
+ * Thumbnails are keyed by path, size and mtime, so an edited image simply
+ * misses and stale entries age out of the disk cache.
+ */
+public class ThumbnailService implements PathChangeListener {
+
+    private static final String[] IMAGE_EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+    private static final int THUMBNAIL_SIZE = 160;
+    private static final long MAX_SOURCE_PIXELS = 50_000_000L;
+    private static final long MEMORY_CACHE_BYTES = 8L * 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+
+    private final FTP_Server serverGUI;
+    private final File cacheDirectory;
+    private final long maxDiskBytes;
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final ThreadPoolExecutor workers;
+    private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, byte[]> memoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    public ThumbnailService(FTP_Server serverGUI, File cacheDirectory) {
+        this.serverGUI = serverGUI;
+        this.cacheDirectory = cacheDirectory;
+        this.maxDiskBytes = Long.getLong("ftp.thumbnails.maxDiskBytes", 64L * 1024 * 1024);
+        if (!cacheDirectory.exists()) {
+            cacheDirectory.mkdirs();
+        }
+        File[] cached = cacheDirectory.listFiles();
+        if (cached != null) {
+            for (File file : cached) {
+                diskBytes.addAndGet(file.length());
+            }
+        }
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail-worker");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    public static boolean isImage(String fileName) {
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the thumbnail bytes, waiting briefly if it has to be generated.
+     * Returns null if the file is not a readable image or the pool is saturated.
+     */
+    public byte[] getThumbnail(File image) {
+        String key = key(image);
+        byte[] cached = readCached(key);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<byte[]> future = schedule(image, key);
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    @Override
+    public void created(File file) {
+        prefetch(file);
+    }
+
+    @Override
+    public void modified(File file) {
+        prefetch(file);
+    }
+
+    @Override
+    public void deleted(File file) {
+        // Keys include the mtime, so nothing can be served stale; the entry ages out of the disk cache.
+    }
+
+    @Override
+    public void renamed(File from, File to) {
+        prefetch(to);
+    }
+
+    private void prefetch(File file) {
+        if (file.isFile() && isImage(file.getName())) {
+            String key = key(file);
+            if (readCached(key) == null) {
+                schedule(file, key);
+            }
+        }
+    }
+
+    // Duplicate requests for the same image share one generation task.
+    private CompletableFuture<byte[]> schedule(File image, String key) {
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    byte[] thumbnail = generate(image);
+                    if (thumbnail != null) {
+                        store(key, thumbnail);
+                    }
+                    created.complete(thumbnail);
+                } catch (IOException | RuntimeException e) {
+                    created.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            created.complete(null);
+            return null;
+        }
+        return created;
+    }
+
+    private byte[] generate(File image) throws IOException {
+        BufferedImage source;
+        try (ImageInputStream input = ImageIO.createImageInputStream(image)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_SOURCE_PIXELS) {
+                    return null;
+                }
+                // Decode only every n-th pixel of large images; the result is scaled down anyway.
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.min(width, height) / (THUMBNAIL_SIZE * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(java.awt.Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private byte[] readCached(String key) {
+        synchronized (memoryCache) {
+            byte[] cached = memoryCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        File file = new File(cacheDirectory, key + ".jpg");
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            // The mtime doubles as last-access time for disk eviction.
+            file.setLastModified(System.currentTimeMillis());
+            remember(key, data);
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void store(String key, byte[] thumbnail) {
+        remember(key, thumbnail);
+        File file = new File(cacheDirectory, key + ".jpg");
+        File temp = new File(cacheDirectory, key + ".tmp");
+        try {
+            Files.write(temp.toPath(), thumbnail);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (diskBytes.addAndGet(thumbnail.length) > maxDiskBytes) {
+                evictDisk();
+            }
+        } catch (IOException e) {
+            serverGUI.appendToConsole("Error caching thumbnail: " + e.getMessage());
+        }
+    }
+
+    private void remember(String key, byte[] thumbnail) {
+        synchronized (memoryCache) {
+            if (memoryCache.put(key, thumbnail) == null) {
+                memoryBytes += thumbnail.length;
+            }
+            Iterator<byte[]> it = memoryCache.values().iterator();
+            while (memoryBytes > MEMORY_CACHE_BYTES && it.hasNext()) {
+                memoryBytes -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    // Drops the least recently used files until the cache is back under 90% of its budget.
+    private synchronized void evictDisk() {
+        File[] files = cacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        long target = maxDiskBytes * 9 / 10;
+        for (File file : files) {
+            if (total <= target) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private static String key(File image) {
+        String identity = image.getAbsoluteFile().toPath().normalize() + "|" + image.length() + "|" + image.lastModified();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
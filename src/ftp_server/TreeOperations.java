@@ -0,0 +1,233 @@
+package ftp_server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TreeOperations {
+
+    private static final int MAX_REPORTED_FAILURES = 100;
+    private static final int FILE_BATCH_SIZE = 256;
+    // Walks are dominated by blocking file system calls, so run more workers than cores.
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+
+    public static class Progress {
+
+        private final String operation;
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong directories = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+
+        public Progress(String operation) {
+            this.operation = operation;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        private void fail(Path path, IOException e) {
+            if (failed.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+                failures.add(path + ": " + e);
+            }
+        }
+
+        public TreeResult snapshot() {
+            return new TreeResult(operation, files.get(), directories.get(), bytes.get(), failed.get(),
+                    new ArrayList<>(failures), cancelled, finished);
+        }
+    }
+
+    public static ForkJoinTask<TreeResult> submitDelete(Path root, Progress progress) {
+        return submit(new WalkTask(root, null, progress), progress);
+    }
+
+    public static ForkJoinTask<TreeResult> submitSize(Path root, Progress progress) {
+        return submit(new WalkTask(root, null, progress), progress);
+    }
+
+    public static ForkJoinTask<TreeResult> submitCopy(Path source, Path target, Progress progress) {
+        if (isInside(target, source)) {
+            throw new IllegalArgumentException("Cannot copy " + source + " into itself: " + target);
+        }
+        return submit(new WalkTask(source, target, progress), progress);
+    }
+
+    public static TreeResult delete(Path root) {
+        return submitDelete(root, new Progress(TreeResult.OP_DELETE)).join();
+    }
+
+    public static TreeResult size(Path root) {
+        return submitSize(root, new Progress(TreeResult.OP_SIZE)).join();
+    }
+
+    public static TreeResult copy(Path source, Path target) {
+        return submitCopy(source, target, new Progress(TreeResult.OP_COPY)).join();
+    }
+
+    // Copying a tree into itself would keep creating target/target/... until the path is too long.
+    public static boolean isInside(Path path, Path directory) {
+        return path.toAbsolutePath().normalize().startsWith(directory.toAbsolutePath().normalize());
+    }
+
+    private static ForkJoinTask<TreeResult> submit(WalkTask task, Progress progress) {
+        return POOL.submit(() -> {
+            try {
+                task.invoke();
+            } finally {
+                progress.finished = true;
+            }
+            return progress.snapshot();
+        });
+    }
+
+    private static class WalkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Path target;
+        private final Progress progress;
+
+        WalkTask(Path directory, Path target, Progress progress) {
+            this.directory = directory;
+            this.target = target;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (progress.isCancelled()) {
+                return;
+            }
+            if (TreeResult.OP_COPY.equals(progress.operation)) {
+                try {
+                    Files.createDirectories(target);
+                } catch (IOException e) {
+                    progress.fail(target, e);
+                    return;
+                }
+            }
+
+            List<ForkJoinTask<?>> children = new ArrayList<>();
+            List<Path> batch = new ArrayList<>();
+            List<BasicFileAttributes> batchAttributes = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (progress.isCancelled()) {
+                        break;
+                    }
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        progress.fail(entry, e);
+                        continue;
+                    }
+                    if (!attributes.isDirectory() && !TreeResult.OP_DELETE.equals(progress.operation)
+                            && Durability.isTemp(entry.getFileName().toString())) {
+                        continue; // An unfinished upload is not part of the tree's size or of a copy.
+                    }
+                    if (attributes.isDirectory()) {
+                        Path childTarget = target == null ? null : target.resolve(entry.getFileName().toString());
+                        WalkTask child = new WalkTask(entry, childTarget, progress);
+                        child.fork();
+                        children.add(child);
+                    } else {
+                        batch.add(entry);
+                        batchAttributes.add(attributes);
+                        if (batch.size() == FILE_BATCH_SIZE) {
+                            children.add(new FileBatchTask(this, batch, batchAttributes).fork());
+                            batch = new ArrayList<>();
+                            batchAttributes = new ArrayList<>();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                progress.fail(directory, e);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                visitFile(batch.get(i), batchAttributes.get(i));
+            }
+
+            for (ForkJoinTask<?> child : children) {
+                child.join();
+            }
+
+            if (TreeResult.OP_DELETE.equals(progress.operation) && !progress.isCancelled()) {
+                try {
+                    Files.delete(directory);
+                } catch (IOException e) {
+                    progress.fail(directory, e);
+                    return;
+                }
+            }
+            progress.directories.incrementAndGet();
+        }
+
+        private void visitFile(Path file, BasicFileAttributes attributes) {
+            try {
+                switch (progress.operation) {
+                    case TreeResult.OP_DELETE:
+                        Files.delete(file);
+                        break;
+                    case TreeResult.OP_COPY:
+                        Files.copy(file, target.resolve(file.getFileName().toString()),
+                                StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+                        break;
+                    default:
+                        break;
+                }
+                progress.files.incrementAndGet();
+                progress.bytes.addAndGet(attributes.size());
+            } catch (IOException e) {
+                progress.fail(file, e);
+            }
+        }
+    }
+
+    private static class FileBatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final WalkTask parent;
+        private final List<Path> files;
+        private final List<BasicFileAttributes> attributes;
+
+        FileBatchTask(WalkTask parent, List<Path> files, List<BasicFileAttributes> attributes) {
+            this.parent = parent;
+            this.files = files;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < files.size() && !parent.progress.isCancelled(); i++) {
+                parent.visitFile(files.get(i), attributes.get(i));
+            }
+        }
+    }
+}
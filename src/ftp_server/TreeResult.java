@@ -0,0 +1,69 @@
+package ftp_server;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class TreeResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String OP_DELETE = "delete";
+    public static final String OP_SIZE = "size";
+    public static final String OP_COPY = "copy";
+
+    private String operation;
+    private long files;
+    private long directories;
+    private long bytes;
+    private long failed;
+    private List<String> failures;
+    private boolean cancelled;
+    private boolean finished;
+
+    public TreeResult(String operation, long files, long directories, long bytes, long failed,
+            List<String> failures, boolean cancelled, boolean finished) {
+        this.operation = operation;
+        this.files = files;
+        this.directories = directories;
+        this.bytes = bytes;
+        this.failed = failed;
+        this.failures = failures;
+        this.cancelled = cancelled;
+        this.finished = finished;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getDirectories() {
+        return directories;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isSuccess() {
+        return finished && !cancelled && failed == 0;
+    }
+}